@@ -0,0 +1,81 @@
+/*
+Process wide pool of cache aligned workspaces
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include <new>
+#include <mutex>
+#include <cstdlib>
+
+template <typename TYPE, int IDLE_MAX = 1>
+class Arena {
+	static const size_t alignment = 64;
+	struct State {
+		std::mutex mutex;
+		void *idle[IDLE_MAX];
+		int idle_count = 0;
+		int busy_count = 0;
+	};
+
+	static State &state() {
+		static State state;
+		return state;
+	}
+
+public:
+	static const size_t size = (sizeof(TYPE) + alignment - 1) & ~(alignment - 1);
+
+	// returns nullptr if we ran out of memory
+	static TYPE *acquire() {
+		State &s = state();
+		void *ptr = nullptr;
+		{
+			std::lock_guard<std::mutex> lock(s.mutex);
+			if (s.idle_count)
+				ptr = s.idle[--s.idle_count];
+			++s.busy_count;
+		}
+		if (!ptr && posix_memalign(&ptr, alignment, size)) {
+			std::lock_guard<std::mutex> lock(s.mutex);
+			--s.busy_count;
+			return nullptr;
+		}
+		// default initialized, so the large buffers are not zero filled on every acquire
+		return new(ptr) TYPE;
+	}
+
+	// keeps up to IDLE_MAX workspaces for the next frame, so their pages stay mapped
+	static void release(TYPE *work) {
+		if (!work)
+			return;
+		work->~TYPE();
+		State &s = state();
+		{
+			std::lock_guard<std::mutex> lock(s.mutex);
+			--s.busy_count;
+			if (s.idle_count < IDLE_MAX) {
+				s.idle[s.idle_count++] = work;
+				return;
+			}
+		}
+		free(work);
+	}
+
+	// hands all idle workspaces back to the system
+	static void trim() {
+		State &s = state();
+		std::lock_guard<std::mutex> lock(s.mutex);
+		while (s.idle_count)
+			free(s.idle[--s.idle_count]);
+	}
+
+	static void count(int *busy, int *idle) {
+		State &s = state();
+		std::lock_guard<std::mutex> lock(s.mutex);
+		*busy = s.busy_count;
+		*idle = s.idle_count;
+	}
+};
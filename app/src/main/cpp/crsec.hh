@@ -20,13 +20,20 @@ class CauchyReedSolomonErasureCoding {
 #else
 	static const int SIMD = 16;
 #endif
-	GaloisField instance;
 	CODE::CRC<uint32_t> crc32;
 	CODE::CauchyReedSolomonErasureCoding<GaloisField> crs;
 	alignas(SIMD) uint8_t chunk_mesg[5376], chunk_data[64512];
 	uint16_t chunk_ident[12];
+
+	// the tables are global, so share them between all instances
+	static GaloisField &instance() {
+		static GaloisField tables;
+		return tables;
+	}
 public:
-	CauchyReedSolomonErasureCoding() : crc32(0x8F6E37A0) {}
+	CauchyReedSolomonErasureCoding() : crc32(0x8F6E37A0) {
+		instance();
+	}
 
 	bool chunk(const uint8_t *payload, int idx, int ident) {
 		chunk_ident[idx] = ident;
@@ -7,6 +7,11 @@ Copyright 2021 Ahmet Inan <inan@aicodix.de>
 #pragma once
 
 #include <cmath>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <atomic>
+#include <thread>
 #include <iostream>
 #include <algorithm>
 
@@ -33,6 +38,7 @@ namespace DSP { using std::abs; using std::min; using std::cos; using std::sin;
 #include "crc.hh"
 #include "osd.hh"
 #include "psk.hh"
+#include "arena.hh"
 
 #define STATUS_OKAY 0
 #define STATUS_FAIL 1
@@ -41,6 +47,40 @@ namespace DSP { using std::abs; using std::min; using std::cos; using std::sin;
 #define STATUS_HEAP 4
 #define STATUS_NOPE 5
 
+// the analytic samples of the reference and data symbols of a frame, each starting half a guard interval early
+struct Frame {
+	DSP::Complex<float> *samples = nullptr;
+	int capacity = 0;
+	int length = 0;
+	int rate = 0;
+	int mode = 0;
+	uint64_t call = 0;
+	float cfo_rad = 0;
+	// set by the owner, to match a failed frame with its retry
+	int64_t mark = -1;
+
+	Frame() = default;
+
+	Frame(const Frame &) = delete;
+
+	Frame &operator=(const Frame &) = delete;
+
+	~Frame() {
+		std::free(samples);
+	}
+
+	// sized to the synced mode and not zero filled, keeps the buffer if it is large enough
+	bool reserve(int count) {
+		length = 0;
+		if (count <= capacity)
+			return true;
+		std::free(samples);
+		samples = static_cast<DSP::Complex<float> *>(std::malloc(sizeof(DSP::Complex<float>) * count));
+		capacity = samples ? count : 0;
+		return samples != nullptr;
+	}
+};
+
 struct Interface {
 	virtual int process(uint32_t *, uint32_t *, uint32_t *, uint32_t *, const int16_t *, int, int) = 0;
 
@@ -48,11 +88,54 @@ struct Interface {
 
 	virtual int fetch(uint8_t *) = 0;
 
+	virtual float snr() = 0;
+
 	virtual int rate() = 0;
 
+	virtual void shift(int) = 0;
+
+	virtual int memory(char *, int) = 0;
+
+	virtual void speculate(int) = 0;
+
+	virtual void drift(float *, float *) = 0;
+
+	virtual Frame *failed() = 0;
+
+	virtual int retry(uint8_t *, const Frame *) = 0;
+
 	virtual ~Interface() = default;
 };
 
+// only needed from sync until fetch, so allocated from the Arena when a frame begins
+struct Workspace {
+	float code[65536];
+	DSP::TheilSenEstimator<float, 512> tse;
+	Polar<float> polar;
+};
+
+typedef Arena<Workspace> WorkspaceArena;
+
+// rate independent, so built only once for all decoders
+struct PreambleGenerator {
+	int8_t matrix[255 * 71];
+
+	PreambleGenerator() {
+		CODE::BoseChaudhuriHocquenghemGenerator<255, 71>::matrix(matrix, true, {
+			0b100011101, 0b101110111, 0b111110011, 0b101101001,
+			0b110111101, 0b111100111, 0b100101011, 0b111010111,
+			0b000010011, 0b101100101, 0b110001011, 0b101100011,
+			0b100011011, 0b100111111, 0b110001101, 0b100101101,
+			0b101011111, 0b111111001, 0b111000011, 0b100111001,
+			0b110101001, 0b000011111, 0b110000111, 0b110110001});
+	}
+
+	static const int8_t *get() {
+		static const PreambleGenerator generator;
+		return generator.matrix;
+	}
+};
+
 template<int RATE>
 class Decoder : public Interface {
 	typedef DSP::Complex<float> cmplx;
@@ -75,26 +158,28 @@ class Decoder : public Interface {
 	static const int pre_seq_len = 255;
 	static const int pre_seq_off = -pre_seq_len / 2;
 	static const int pre_seq_poly = 0b100101011;
-	static const int buffer_length = 4 * extended_length;
+	// a guard interval longer, as the timing offset and the tracking can each move the window by half of it
+	static const int buffer_length = 4 * extended_length + guard_length;
 	static const int search_position = extended_length;
 	static const int mod_bits_max = 3;
+	static const int frame_margin = guard_length / 2;
+	static const int hypothesis_count = 6;
+	typedef SchmidlCox<float, cmplx, search_position, symbol_length / 2, guard_length> Correlator;
 	DSP::FastFourierTransform<symbol_length, cmplx, -1> fwd;
-	SchmidlCox<float, cmplx, search_position, symbol_length / 2, guard_length> correlator;
+	Correlator correlator;
 	DSP::BlockDC<float, float> block_dc;
 	DSP::Hilbert<cmplx, filter_length> hilbert;
 	DSP::BipBuffer<cmplx, buffer_length> buffer;
-	DSP::TheilSenEstimator<float, carrier_count_max> tse;
 	DSP::Phasor<cmplx> osc;
-	DSP::Hann<float> hann;
-	DSP::LowPass2<float> lowpass;
-	DSP::Coeffs<symbol_length, float, true> window;
 	CODE::CRC<uint16_t> crc;
 	CODE::OrderedStatisticsDecoder<255, 71, 2> osd;
-	Polar<code_type> polar;
 	cmplx temp[extended_length], freq[symbol_length], prev[carrier_count_max], cons[carrier_count_max];
 	float power[spectrum_width]{}, index[carrier_count_max]{}, phase[carrier_count_max]{};
-	code_type code[65536];
-	int8_t generator[255 * 71];
+	Workspace *work = nullptr;
+	Frame *frame = nullptr;
+	Frame *lost = nullptr;
+	const int8_t *generator;
+	const float *window;
 	int8_t soft[pre_seq_len];
 	uint8_t data[(pre_seq_len + 7) / 8];
 	int prev_peak = 0;
@@ -104,6 +189,14 @@ class Decoder : public Interface {
 	int carrier_offset = 0;
 	int mod_bits = 0;
 	int symbol_position = search_position + 2 * extended_length;
+	int timing_offset = 0;
+	int shift_applied = 0;
+	int speculative_threads = 0;
+	float precision_sum = 0;
+	float timing_error = 0;
+	float timing_drift = 0;
+	float timing_shift = 0;
+	float drift_rate = 0;
 	int cached_mode = 0;
 	int operation_mode = 0;
 	uint64_t cached_call = 0;
@@ -155,13 +248,27 @@ class Decoder : public Interface {
 		return cons;
 	}
 
-	const cmplx *corSeq() {
-		CODE::MLS seq(cor_seq_poly);
-		for (int i = 0; i < symbol_length / 2; ++i)
-			freq[i] = 0;
-		for (int i = 0; i < cor_seq_len; ++i)
-			freq[(i + cor_seq_off / 2 + symbol_length / 2) % (symbol_length / 2)] = nrz(seq());
-		return freq;
+	struct Tables {
+		cmplx kern[symbol_length / 2];
+		DSP::Hann<float> hann;
+		DSP::LowPass2<float> lowpass;
+		DSP::Coeffs<symbol_length, float, true> window;
+
+		Tables() : lowpass(1, symbol_length), window(&hann, &lowpass) {
+			cmplx seq[symbol_length / 2];
+			CODE::MLS mls(cor_seq_poly);
+			for (int i = 0; i < symbol_length / 2; ++i)
+				seq[i] = 0;
+			for (int i = 0; i < cor_seq_len; ++i)
+				seq[(i + cor_seq_off / 2 + symbol_length / 2) % (symbol_length / 2)] = nrz(mls());
+			Correlator::kernel(kern, seq);
+		}
+	};
+
+	// built on first use and shared by all decoders of this rate
+	static const Tables &tables() {
+		static const Tables tables;
+		return tables;
 	}
 
 	void update_peak_meter(uint32_t *pixels, const int16_t *samples, int channel) {
@@ -297,9 +404,31 @@ class Decoder : public Interface {
 				++count;
 			}
 		}
-		tse.compute(index, phase, count);
+		work->tse.compute(index, phase, count);
 		for (int i = 0; i < carrier_count; ++i)
-			cons[i] *= DSP::polar<float>(1, -tse(i + carrier_offset));
+			cons[i] *= DSP::polar<float>(1, -work->tse(i + carrier_offset));
+	}
+
+	// second order loop on the timing error given by the phase slope, returns the whole samples to move the window
+	int track(int lower, int upper) {
+		timing_error += work->tse.slope() * (symbol_length / Const::TwoPi());
+		timing_drift = timing_shift - timing_error;
+		drift_rate += 0.05f * timing_error;
+		timing_shift -= 0.25f * timing_error + drift_rate;
+		timing_shift = std::clamp<float>(timing_shift, std::max(lower, -guard_length / 2), std::min(upper, guard_length / 2));
+		int whole = std::nearbyint(timing_shift);
+		int step = whole - shift_applied;
+		shift_applied = whole;
+		return step;
+	}
+
+	// moves the window by the fraction of a sample the whole sample steps could not and undoes their carrier phase jumps
+	void interpolate(float cfo_rad) {
+		float delay = (timing_shift - shift_applied) * (Const::TwoPi() / symbol_length);
+		cmplx step = DSP::polar<float>(1, delay);
+		cmplx rot = DSP::polar<float>(1, carrier_offset * delay - shift_applied * cfo_rad);
+		for (int i = 0; i < carrier_count; ++i, rot *= step)
+			freq[bin(i + carrier_offset)] *= rot;
 	}
 
 	float precision() {
@@ -317,8 +446,9 @@ class Decoder : public Interface {
 
 	void demap() {
 		float prec = precision();
+		precision_sum += prec;
 		for (int i = 0; i < carrier_count; ++i)
-			mod_soft(code + mod_bits * (symbol_number * carrier_count + i), cons[i], prec);
+			mod_soft(work->code + mod_bits * (symbol_number * carrier_count + i), cons[i], prec);
 	}
 
 	int preamble(const cmplx *buf) {
@@ -401,33 +531,203 @@ class Decoder : public Interface {
 		}
 		carrier_offset = -carrier_count / 2;
 		symbol_number = 0;
+		precision_sum = 0;
+		timing_error = 0;
+		timing_drift = 0;
+		timing_shift = 0;
+		drift_rate = 0;
+		shift_applied = 0;
+	}
+
+	// demodulates and decodes a recorded frame with the given timing and carrier frequency offset
+	int replay(uint8_t *message, const cmplx *samples, int offset, float cfo_rad, int mode, const std::atomic<bool> &found) {
+		operation_mode = mode;
+		prepare();
+		if (!work && !(work = WorkspaceArena::acquire()))
+			return -1;
+		osc.omega(-cfo_rad);
+		for (int k = 0; k <= symbol_count; ++k) {
+			if (found)
+				return -1;
+			for (int i = 0; i < extended_length; ++i) {
+				cmplx rot = osc();
+				if (i < symbol_length)
+					temp[i] = samples[k * extended_length + offset + shift_applied + i] * rot;
+			}
+			fwd(freq, temp);
+			if (k) {
+				interpolate(cfo_rad);
+				for (int i = 0; i < carrier_count; ++i)
+					cons[i] = demod_or_erase(freq[bin(i + carrier_offset)], prev[i]);
+				compensate();
+				track(-offset, guard_length - offset);
+				demap();
+				++symbol_number;
+			}
+			for (int i = 0; i < carrier_count; ++i)
+				prev[i] = freq[bin(i + carrier_offset)];
+		}
+		return work->polar(message, work->code, operation_mode);
 	}
 
 public:
-	Decoder() : correlator(corSeq()), crc(0xA8F4), lowpass(1, symbol_length), window(&hann, &lowpass) {
-		CODE::BoseChaudhuriHocquenghemGenerator<255, 71>::matrix(generator, true, {
-			0b100011101, 0b101110111, 0b111110011, 0b101101001,
-			0b110111101, 0b111100111, 0b100101011, 0b111010111,
-			0b000010011, 0b101100101, 0b110001011, 0b101100011,
-			0b100011011, 0b100111111, 0b110001101, 0b100101101,
-			0b101011111, 0b111111001, 0b111000011, 0b100111001,
-			0b110101001, 0b000011111, 0b110000111, 0b110110001});
+	Decoder() : correlator(tables().kern), crc(0xA8F4), generator(PreambleGenerator::get()), window(tables().window) {
 		block_dc.samples(filter_length);
 		osc.omega(-2000, RATE);
 	}
 
+	// builds the tables shared by all decoders of this rate, without constructing one
+	static void build_tables() {
+		tables();
+		PreambleGenerator::get();
+		DSP::FastFourierTransform<symbol_length, cmplx, -1>::table();
+		DSP::FastFourierTransform<symbol_length / 2, cmplx, -1>::table();
+		DSP::FastFourierTransform<symbol_length / 2, cmplx, 1>::table();
+	}
+
 	int rate() final {
 		return RATE;
 	}
 
+	// clamped to the hypotheses, more threads would have nothing to try
+	void speculate(int threads) final {
+		speculative_threads = threads < 0 ? 0 : threads > hypothesis_count ? hypothesis_count : threads;
+	}
+
+	void drift(float *ppm, float *shift) final {
+		*ppm = symbol_number ? timing_drift * 1e6f / (symbol_number * extended_length) : 0;
+		*shift = timing_shift;
+	}
+
+	// hands over the recorded samples of the last frame that failed the CRC
+	Frame *failed() final {
+		Frame *rec = lost;
+		lost = nullptr;
+		return rec;
+	}
+
+	// tries alternative timing and integer carrier frequency offsets on helpers that only live for the retry, stops at the first CRC pass
+	int retry(uint8_t *payload, const Frame *rec) final {
+		static const int shifts[hypothesis_count] = {-guard_length / 8, guard_length / 8, 0, 0, -guard_length / 4, guard_length / 4};
+		static const int bins[hypothesis_count] = {0, 0, -1, 1, 0, 0};
+		if (!rec || rec->rate != RATE)
+			return -1;
+		Decoder *helpers[hypothesis_count] = {};
+		int threads = 0;
+		while (threads < speculative_threads && (helpers[threads] = new(std::nothrow) Decoder()))
+			++threads;
+		if (!threads)
+			return -1;
+		std::atomic<int> next(0);
+		std::atomic<bool> found(false);
+		Decoder *winner = nullptr;
+		int result = -1;
+		auto worker = [&](Decoder *spec) {
+			uint8_t message[data_bits / 8];
+			for (int k; !found && (k = next++) < hypothesis_count;) {
+				float cfo = rec->cfo_rad + bins[k] * (Const::TwoPi() / symbol_length);
+				int flips = spec->replay(message, rec->samples, frame_margin + shifts[k], cfo, rec->mode, found);
+				if (flips >= 0 && !found.exchange(true)) {
+					std::memcpy(payload, message, data_bits / 8);
+					result = flips;
+					winner = spec;
+				}
+			}
+			WorkspaceArena::release(spec->work);
+			spec->work = nullptr;
+		};
+		std::thread pool[hypothesis_count];
+		for (int i = 1; i < threads; ++i)
+			pool[i] = std::thread(worker, helpers[i]);
+		worker(helpers[0]);
+		for (int i = 1; i < threads; ++i)
+			pool[i].join();
+		if (winner) {
+			correlator.cfo_rad = rec->cfo_rad;
+			cached_mode = rec->mode;
+			cached_call = rec->call;
+			symbol_number = winner->symbol_number;
+			precision_sum = winner->precision_sum;
+			timing_drift = winner->timing_drift;
+			timing_shift = winner->timing_shift;
+		}
+		for (int i = 0; i < threads; ++i)
+			delete helpers[i];
+		if (result < 0)
+			return -1;
+		CODE::Xorshift32 scrambler;
+		for (int i = 0; i < data_bits / 8; ++i)
+			payload[i] ^= scrambler();
+		return result;
+	}
+
+	void shift(int offset) final {
+		timing_offset = std::clamp(offset, -guard_length / 2, guard_length / 2);
+	}
+
 	void cached(float *cfo, int32_t *mode, int8_t *call) final {
 		*cfo = correlator.cfo_rad * (RATE / Const::TwoPi());
 		*mode = cached_mode;
 		base37(call, cached_call, 9);
 	}
 
+	float snr() final {
+		if (!symbol_number)
+			return 0;
+		return DSP::decibel(precision_sum / symbol_number);
+	}
+
+	int memory(char *text, int size) final {
+		int busy, idle;
+		WorkspaceArena::count(&busy, &idle);
+		auto kib = [](size_t bytes) { return int((bytes + 1023) / 1024); };
+		size_t samples = sizeof(temp) + sizeof(freq) + sizeof(prev) + sizeof(cons) + sizeof(power) + sizeof(index) + sizeof(phase);
+		size_t factors = (symbol_length + symbol_length) * sizeof(cmplx);
+		return snprintf(text, size,
+			"decoder at %d Hz: %d KiB\n"
+			"  correlator: %d KiB\n"
+			"  sample buffer: %d KiB\n"
+			"  filters: %d KiB\n"
+			"  symbol buffers: %d KiB\n"
+			"  preamble decoder: %d KiB\n"
+			"shared tables: %d KiB\n"
+			"workspace: %d KiB each, %d in use, %d pooled\n"
+			"speculation: %d helpers, frame buffer %d KiB\n",
+			RATE, kib(sizeof(*this)),
+			kib(sizeof(correlator)),
+			kib(sizeof(buffer)),
+			kib(sizeof(hilbert) + sizeof(block_dc)),
+			kib(samples),
+			kib(sizeof(osd) + sizeof(soft) + sizeof(data)),
+			kib(sizeof(Tables) + sizeof(PreambleGenerator) + factors),
+			kib(WorkspaceArena::size), busy, idle,
+			speculative_threads, kib(frame ? sizeof(cmplx) * frame->capacity : 0));
+	}
+
+	~Decoder() {
+		WorkspaceArena::release(work);
+		delete frame;
+		delete lost;
+	}
+
 	int fetch(uint8_t *payload) final {
-		int result = polar(payload, code, operation_mode);
+		if (!work)
+			return -1;
+		int result = work->polar(payload, work->code, operation_mode);
+		WorkspaceArena::release(work);
+		work = nullptr;
+		// only a failed frame keeps its recording, so the idle decoder holds none
+		if (result < 0 && frame && frame->length == (symbol_count + 1) * extended_length) {
+			frame->rate = RATE;
+			frame->mode = operation_mode;
+			frame->call = call_sign;
+			frame->cfo_rad = correlator.cfo_rad;
+			delete lost;
+			lost = frame;
+		} else {
+			delete frame;
+		}
+		frame = nullptr;
 		CODE::Xorshift32 scrambler;
 		for (int i = 0; i < data_bits / 8; ++i)
 			payload[i] ^= scrambler();
@@ -442,16 +742,27 @@ public:
 			buf = next_sample(audio_buffer, channel_select, i);
 			if (correlator(buf)) {
 				status = preamble(buf);
+				if (status == STATUS_OKAY && !work && !(work = WorkspaceArena::acquire()))
+					status = STATUS_HEAP;
 				if (status == STATUS_OKAY) {
 					osc.omega(-correlator.cfo_rad);
-					symbol_position = correlator.symbol_pos + extended_length + i;
+					symbol_position = correlator.symbol_pos + extended_length + i + timing_offset;
 					prepare();
+					if (speculative_threads && !frame)
+						frame = new(std::nothrow) Frame();
+					if (frame && !frame->reserve((symbol_count + 1) * extended_length)) {
+						delete frame;
+						frame = nullptr;
+					}
 					status = STATUS_SYNC;
 				}
 			}
 		}
 		for (int i = 0; i < extended_length; ++i)
 			temp[i] = buf[symbol_position + i] * osc();
+		if (frame && (status == STATUS_SYNC || symbol_number < symbol_count))
+			for (int i = 0; i < extended_length; ++i)
+				frame->samples[frame->length++] = buf[symbol_position - shift_applied - frame_margin + i];
 		if (status == STATUS_SYNC) {
 			update_oscilloscope(constellation_pixels, color_tint);
 			fwd(freq, temp);
@@ -461,9 +772,11 @@ public:
 				freq[i] /= symbol_length;
 		} else if (symbol_number < symbol_count) {
 			fwd(freq, temp);
+			interpolate(correlator.cfo_rad);
 			for (int i = 0; i < carrier_count; ++i)
 				cons[i] = demod_or_erase(freq[bin(i + carrier_offset)], prev[i]);
 			compensate();
+			symbol_position += track(-guard_length / 2, guard_length / 2);
 			demap();
 			update_constellation(constellation_pixels, color_tint);
 			if (++symbol_number == symbol_count)
@@ -1111,13 +1111,26 @@ struct Dit<31, BINS, STRIDE, TYPE, SIGN>
 template <int BINS, typename TYPE, int SIGN>
 class FastFourierTransform
 {
-	TYPE factors[BINS];
+	struct Factors
+	{
+		typedef typename TYPE::value_type value_type;
+		TYPE w[BINS];
+		Factors()
+		{
+			for (int n = 0; n < BINS; ++n)
+				w[n] = TYPE(UnitCircle<value_type>::cos(n, BINS), SIGN * UnitCircle<value_type>::sin(n, BINS));
+		}
+	};
+	const TYPE *factors;
 public:
 	typedef typename TYPE::value_type value_type;
-	FastFourierTransform()
+	static const TYPE *table()
+	{
+		static const Factors factors;
+		return factors.w;
+	}
+	FastFourierTransform() : factors(table())
 	{
-		for (int n = 0; n < BINS; ++n)
-			factors[n] = TYPE(UnitCircle<value_type>::cos(n, BINS), SIGN * UnitCircle<value_type>::sin(n, BINS));
 	}
 	inline void operator ()(TYPE *out, const TYPE *in)
 	{
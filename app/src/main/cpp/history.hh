@@ -0,0 +1,151 @@
+/*
+Rolling raw audio history in a memory mapped ring file
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include <cstdio>
+#include <cstring>
+#include <algorithm>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+
+class History {
+	static const uint32_t magic = 0x52534948;
+	static const int header_size = 4096;
+	struct Header {
+		uint32_t magic;
+		int32_t rate;
+		int32_t channels;
+		int32_t frames;
+		int64_t written;
+	};
+	Header *head = nullptr;
+	int16_t *ring = nullptr;
+	size_t size = 0;
+
+	static void le16(uint8_t *buf, int val) {
+		buf[0] = val;
+		buf[1] = val >> 8;
+	}
+
+	static void le32(uint8_t *buf, int val) {
+		le16(buf, val);
+		le16(buf + 2, val >> 16);
+	}
+
+public:
+	History() = default;
+
+	History(const History &) = delete;
+
+	History &operator=(const History &) = delete;
+
+	~History() {
+		close();
+	}
+
+	bool open(const char *path, int rate, int channels, int seconds) {
+		close();
+		int frames = rate * seconds;
+		size = header_size + sizeof(int16_t) * channels * (size_t) frames;
+		int fd = ::open(path, O_RDWR | O_CREAT, 0600);
+		if (fd < 0)
+			return false;
+		void *addr = MAP_FAILED;
+		if (ftruncate(fd, size) == 0)
+			addr = mmap(nullptr, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+		::close(fd);
+		if (addr == MAP_FAILED)
+			return false;
+		head = reinterpret_cast<Header *>(addr);
+		ring = reinterpret_cast<int16_t *>(reinterpret_cast<uint8_t *>(addr) + header_size);
+		if (head->magic != magic || head->rate != rate || head->channels != channels || head->frames != frames || head->written < 0) {
+			head->magic = magic;
+			head->rate = rate;
+			head->channels = channels;
+			head->frames = frames;
+			head->written = 0;
+		}
+		return true;
+	}
+
+	void close() {
+		if (head)
+			munmap(head, size);
+		head = nullptr;
+		ring = nullptr;
+		size = 0;
+	}
+
+	int rate() const {
+		return head->rate;
+	}
+
+	int channels() const {
+		return head->channels;
+	}
+
+	int frames() const {
+		return head->frames;
+	}
+
+	int64_t written() const {
+		return __atomic_load_n(&head->written, __ATOMIC_ACQUIRE);
+	}
+
+	void write(const int16_t *samples, int count) {
+		int64_t pos = head->written;
+		while (count > 0) {
+			int offset = pos % head->frames;
+			int copy = std::min(count, head->frames - offset);
+			std::memcpy(ring + head->channels * offset, samples, sizeof(int16_t) * head->channels * copy);
+			samples += head->channels * copy;
+			count -= copy;
+			pos += copy;
+		}
+		__atomic_store_n(&head->written, pos, __ATOMIC_RELEASE);
+	}
+
+	bool read(int16_t *samples, int64_t pos, int count) const {
+		if (pos < 0 || pos + count > written() || pos < written() - head->frames)
+			return false;
+		for (int64_t cur = pos, end = pos + count; cur < end;) {
+			int offset = cur % head->frames;
+			int copy = std::min<int64_t>(end - cur, head->frames - offset);
+			std::memcpy(samples, ring + head->channels * offset, sizeof(int16_t) * head->channels * copy);
+			samples += head->channels * copy;
+			cur += copy;
+		}
+		return pos >= written() - head->frames;
+	}
+
+	// the oldest frame that is safe to export, leaving a second of slack for the writer
+	int64_t oldest() const {
+		return std::max<int64_t>(0, written() - head->frames + head->rate);
+	}
+
+	void wav_header(uint8_t *riff, int count) const {
+		int block = head->channels * sizeof(int16_t);
+		std::memcpy(riff, "RIFF", 4);
+		le32(riff + 4, 36 + block * count);
+		std::memcpy(riff + 8, "WAVEfmt ", 8);
+		le32(riff + 16, 16);
+		le16(riff + 20, 1);
+		le16(riff + 22, head->channels);
+		le32(riff + 24, head->rate);
+		le32(riff + 28, head->rate * block);
+		le16(riff + 32, block);
+		le16(riff + 34, 16);
+		std::memcpy(riff + 36, "data", 4);
+		le32(riff + 40, block * count);
+	}
+
+	static void wav_samples(uint8_t *bytes, const int16_t *samples, int count) {
+		for (int i = 0; i < count; ++i)
+			le16(bytes + 2 * i, samples[i]);
+	}
+};
@@ -0,0 +1,186 @@
+/*
+Append-only reception journal in a memory mapped file
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#pragma once
+
+#include <cmath>
+#include <ctime>
+#include <cstring>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+
+#define JOURNAL_SYNC 1
+#define JOURNAL_DONE 2
+#define JOURNAL_LOST 3
+#define JOURNAL_FAIL 4
+#define JOURNAL_NOPE 5
+#define JOURNAL_HEAP 6
+// a frame journaled as lost or failed that was decoded later, by a retry or from the history
+#define JOURNAL_REDO 7
+
+struct JournalRecord {
+	int64_t sequence;
+	int64_t time;
+	char call[12];
+	float cfo;
+	float snr;
+	int32_t rate;
+	int32_t flips;
+	int32_t ident;
+	int32_t blocks;
+	int16_t event;
+	int16_t mode;
+	int16_t stream;
+	int16_t shift;
+	float drift;
+};
+
+static_assert(sizeof(JournalRecord) == 64, "JournalRecord must stay 64 bytes");
+
+class Journal {
+	static const uint32_t magic = 0x4e524a41;
+	static const int version = 1;
+	struct Header {
+		uint32_t magic;
+		int32_t version;
+		int32_t record_size;
+		int32_t capacity;
+		int64_t count;
+		int64_t reserved[5];
+	};
+	Header *head = nullptr;
+	JournalRecord *records = nullptr;
+	size_t size = 0;
+
+	bool map(const char *path, int capacity, bool writable) {
+		close();
+		int fd = ::open(path, writable ? O_RDWR | O_CREAT : O_RDONLY, 0644);
+		if (fd < 0)
+			return false;
+		// an existing journal keeps its capacity, so opening it with another one does not wipe it
+		Header tmp;
+		bool valid = pread(fd, &tmp, sizeof(tmp), 0) == sizeof(tmp) && tmp.magic == magic && tmp.version == version && tmp.record_size == sizeof(JournalRecord) && tmp.capacity > 0 && tmp.count >= 0;
+		if (valid)
+			capacity = tmp.capacity;
+		size = sizeof(Header) + sizeof(JournalRecord) * (size_t) capacity;
+		// a reader must not map past the end of the file either
+		struct stat st;
+		if (capacity <= 0 || (!writable && (!valid || fstat(fd, &st) || (size_t) st.st_size < size))) {
+			::close(fd);
+			return false;
+		}
+		void *addr = MAP_FAILED;
+		if (!writable || ftruncate(fd, size) == 0)
+			addr = mmap(nullptr, size, writable ? PROT_READ | PROT_WRITE : PROT_READ, MAP_SHARED, fd, 0);
+		::close(fd);
+		if (addr == MAP_FAILED)
+			return false;
+		head = reinterpret_cast<Header *>(addr);
+		records = reinterpret_cast<JournalRecord *>(head + 1);
+		if (writable && !valid) {
+			std::memset(addr, 0, size);
+			head->version = version;
+			head->record_size = sizeof(JournalRecord);
+			head->capacity = capacity;
+			head->magic = magic;
+		}
+		return true;
+	}
+
+public:
+	Journal() = default;
+
+	Journal(const Journal &) = delete;
+
+	Journal &operator=(const Journal &) = delete;
+
+	~Journal() {
+		close();
+	}
+
+	// the capacity only applies to a new journal
+	bool open(const char *path, int capacity) {
+		return map(path, capacity, true);
+	}
+
+	bool open_readonly(const char *path) {
+		return map(path, 0, false);
+	}
+
+	void close() {
+		if (head)
+			munmap(head, size);
+		head = nullptr;
+		records = nullptr;
+		size = 0;
+	}
+
+	int capacity() const {
+		return head->capacity;
+	}
+
+	int64_t count() const {
+		return __atomic_load_n(&head->count, __ATOMIC_ACQUIRE);
+	}
+
+	// safe to call from concurrent writers, never allocates
+	void append(const JournalRecord &record) {
+		int64_t seq = __atomic_fetch_add(&head->count, 1, __ATOMIC_ACQ_REL);
+		JournalRecord *slot = records + seq % head->capacity;
+		__atomic_store_n(&slot->sequence, 0, __ATOMIC_RELAXED);
+		__atomic_thread_fence(__ATOMIC_RELEASE);
+		std::memcpy(reinterpret_cast<uint8_t *>(slot) + sizeof(int64_t), reinterpret_cast<const uint8_t *>(&record) + sizeof(int64_t), sizeof(JournalRecord) - sizeof(int64_t));
+		__atomic_store_n(&slot->sequence, seq + 1, __ATOMIC_RELEASE);
+	}
+
+	// copies the record with the given sequence number, returns false if it was overwritten or is incomplete
+	bool read(JournalRecord *record, int64_t seq) const {
+		const JournalRecord *slot = records + seq % head->capacity;
+		if (__atomic_load_n(&slot->sequence, __ATOMIC_ACQUIRE) != seq + 1)
+			return false;
+		std::memcpy(record, slot, sizeof(JournalRecord));
+		__atomic_thread_fence(__ATOMIC_ACQUIRE);
+		return __atomic_load_n(&slot->sequence, __ATOMIC_RELAXED) == seq + 1;
+	}
+
+	static int64_t now() {
+		timespec ts;
+		clock_gettime(CLOCK_REALTIME, &ts);
+		return ts.tv_sec * 1000LL + ts.tv_nsec / 1000000;
+	}
+};
+
+template <typename DECODER>
+JournalRecord journal_record(DECODER *decoder, int event, int flips = -1, const uint8_t *payload = nullptr) {
+	JournalRecord record = {};
+	record.time = Journal::now();
+	record.rate = decoder->rate();
+	record.event = event;
+	record.flips = flips;
+	record.ident = -1;
+	int32_t mode;
+	int8_t call[9];
+	decoder->cached(&record.cfo, &mode, call);
+	if (event != JOURNAL_FAIL && event != JOURNAL_HEAP) {
+		record.mode = mode;
+		for (int i = 0, j = 0; i < 9; ++i)
+			if (call[i] != ' ')
+				record.call[j++] = call[i];
+	}
+	if (event == JOURNAL_DONE || event == JOURNAL_LOST || event == JOURNAL_REDO) {
+		record.snr = decoder->snr();
+		float shift;
+		decoder->drift(&record.drift, &shift);
+		record.shift = std::nearbyint(shift);
+	}
+	if (payload && payload[0] == 'C' && payload[1] == 'R' && payload[2] == 'S') {
+		record.blocks = (payload[4] << 8) + payload[3] + 1;
+		record.ident = (payload[6] << 8) + payload[5];
+	}
+	return record;
+}
@@ -5,12 +5,38 @@ Copyright 2021 Ahmet Inan <inan@aicodix.de>
 */
 
 #include <jni.h>
+#include <mutex>
 #define assert(expr)
 #include "crsec.hh"
 #include "decoder.hh"
+#include "history.hh"
+#include "journal.hh"
 
 static CauchyReedSolomonErasureCoding *crsec;
 static Interface *decoder;
+static History *history;
+static std::mutex history_mutex;
+static Journal *journal;
+// only the latest failed frame waits for its retry, as a recording can take megabytes, an older one still gets redecoded from the history
+static Frame *pending;
+static std::mutex pending_mutex;
+static int speculative_threads;
+
+static Interface *newDecoder(int sampleRate) {
+	switch (sampleRate) {
+		case 8000:
+			return new(std::nothrow) Decoder<8000>();
+		case 16000:
+			return new(std::nothrow) Decoder<16000>();
+		case 32000:
+			return new(std::nothrow) Decoder<32000>();
+		case 44100:
+			return new(std::nothrow) Decoder<44100>();
+		case 48000:
+			return new(std::nothrow) Decoder<48000>();
+	}
+	return nullptr;
+}
 
 extern "C" JNIEXPORT jboolean JNICALL
 Java_com_aicodix_assempix_MainActivity_createCRSEC(
@@ -43,12 +69,13 @@ Java_com_aicodix_assempix_MainActivity_recoverCRSEC(
 	JNIEnv *env,
 	jobject,
 	jbyteArray JNI_payload,
+	jint JNI_imageBytes,
 	jint JNI_blockCount) {
 	jlong status = -1;
-	if (decoder) {
+	if (decoder && JNI_imageBytes <= env->GetArrayLength(JNI_payload)) {
 		jbyte *payload = env->GetByteArrayElements(JNI_payload, nullptr);
 		if (payload)
-			status = crsec->recover(reinterpret_cast<uint8_t *>(payload), env->GetArrayLength(JNI_payload), JNI_blockCount);
+			status = crsec->recover(reinterpret_cast<uint8_t *>(payload), JNI_imageBytes, JNI_blockCount);
 		env->ReleaseByteArrayElements(JNI_payload, payload,0);
 	}
 	return status;
@@ -60,6 +87,52 @@ Java_com_aicodix_assempix_MainActivity_destroyDecoder(
 	jobject) {
 	delete decoder;
 	decoder = nullptr;
+	{
+		std::lock_guard<std::mutex> lock(pending_mutex);
+		delete pending;
+		pending = nullptr;
+	}
+	WorkspaceArena::trim();
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_assempix_MainActivity_speculateDecoder(
+	JNIEnv *,
+	jobject,
+	jint threads) {
+	speculative_threads = threads;
+	if (decoder)
+		decoder->speculate(threads);
+}
+
+// hands the pooled workspace back, the decoders keep theirs while they decode a frame
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_assempix_MainActivity_trimDecoder(
+	JNIEnv *,
+	jobject) {
+	WorkspaceArena::trim();
+}
+
+extern "C" JNIEXPORT jstring JNICALL
+Java_com_aicodix_assempix_MainActivity_memoryDecoder(
+	JNIEnv *env,
+	jobject) {
+	char text[1024];
+	if (!decoder || decoder->memory(text, sizeof(text)) < 0)
+		return nullptr;
+	return env->NewStringUTF(text);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_assempix_MainActivity_driftDecoder(
+	JNIEnv *env,
+	jobject,
+	jfloatArray JNI_clockDrift) {
+	if (!decoder)
+		return;
+	float drift[2];
+	decoder->drift(drift, drift + 1);
+	env->SetFloatArrayRegion(JNI_clockDrift, 0, 2, drift);
 }
 
 extern "C" JNIEXPORT jboolean JNICALL
@@ -70,28 +143,22 @@ Java_com_aicodix_assempix_MainActivity_createDecoder(
 	if (decoder && decoder->rate() == sampleRate)
 		return true;
 	delete decoder;
-	switch (sampleRate) {
-		case 8000:
-			decoder = new(std::nothrow) Decoder<8000>();
-			break;
-		case 16000:
-			decoder = new(std::nothrow) Decoder<16000>();
-			break;
-		case 32000:
-			decoder = new(std::nothrow) Decoder<32000>();
-			break;
-		case 44100:
-			decoder = new(std::nothrow) Decoder<44100>();
-			break;
-		case 48000:
-			decoder = new(std::nothrow) Decoder<48000>();
-			break;
-		default:
-			decoder = nullptr;
-	}
+	decoder = newDecoder(sampleRate);
 	return decoder != nullptr;
 }
 
+extern "C" JNIEXPORT void JNICALL
+Java_com_aicodix_assempix_MainActivity_prepareDecoders(
+	JNIEnv *,
+	jobject) {
+	// so later decoders of each rate only need to allocate
+	Decoder<8000>::build_tables();
+	Decoder<16000>::build_tables();
+	Decoder<32000>::build_tables();
+	Decoder<44100>::build_tables();
+	Decoder<48000>::build_tables();
+}
+
 extern "C" JNIEXPORT jint JNICALL
 Java_com_aicodix_assempix_MainActivity_fetchDecoder(
 	JNIEnv *env,
@@ -100,10 +167,70 @@ Java_com_aicodix_assempix_MainActivity_fetchDecoder(
 	jint status = -1;
 	if (decoder) {
 		jbyte *payload = env->GetByteArrayElements(JNI_payload, nullptr);
-		if (payload)
+		if (payload) {
 			status = decoder->fetch(reinterpret_cast<uint8_t *>(payload));
+			if (journal)
+				journal->append(journal_record(decoder, status < 0 ? JOURNAL_LOST : JOURNAL_DONE, status, reinterpret_cast<uint8_t *>(payload)));
+		}
 		env->ReleaseByteArrayElements(JNI_payload, payload, 0);
+		Frame *rec = decoder->failed();
+		if (rec) {
+			{
+				std::lock_guard<std::mutex> lock(history_mutex);
+				rec->mark = history ? history->written() : -1;
+			}
+			std::lock_guard<std::mutex> lock(pending_mutex);
+			delete pending;
+			pending = rec;
+		}
+	}
+	return status;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_aicodix_assempix_MainActivity_retryDecoder(
+	JNIEnv *env,
+	jobject,
+	jlong mark,
+	jbyteArray JNI_payload,
+	jfloatArray JNI_carrierFrequencyOffset,
+	jintArray JNI_operationMode,
+	jbyteArray JNI_callSign,
+	jfloatArray JNI_clockDrift) {
+	Frame *rec;
+	{
+		std::lock_guard<std::mutex> lock(pending_mutex);
+		if (!pending || pending->mark != mark)
+			return -1;
+		rec = pending;
+		pending = nullptr;
 	}
+	jint status = -1;
+	// not the live decoder, which can be replaced meanwhile, and freed right after with its helpers
+	Interface *speculator = newDecoder(rec->rate);
+	if (speculator) {
+		uint8_t payload[5380];
+		speculator->speculate(speculative_threads);
+		status = speculator->retry(payload, rec);
+		if (status >= 0) {
+			// fetchDecoder already journaled this frame as lost
+			if (journal)
+				journal->append(journal_record(speculator, JOURNAL_REDO, status, payload));
+			float carrierFrequencyOffset;
+			int32_t operationMode;
+			int8_t callSign[9];
+			float clockDrift[2];
+			speculator->cached(&carrierFrequencyOffset, &operationMode, callSign);
+			speculator->drift(clockDrift, clockDrift + 1);
+			env->SetByteArrayRegion(JNI_payload, 0, sizeof(payload), reinterpret_cast<jbyte *>(payload));
+			env->SetFloatArrayRegion(JNI_carrierFrequencyOffset, 0, 1, &carrierFrequencyOffset);
+			env->SetIntArrayRegion(JNI_operationMode, 0, 1, reinterpret_cast<jint *>(&operationMode));
+			env->SetByteArrayRegion(JNI_callSign, 0, 9, reinterpret_cast<jbyte *>(callSign));
+			env->SetFloatArrayRegion(JNI_clockDrift, 0, 2, clockDrift);
+		}
+		delete speculator;
+	}
+	delete rec;
 	return status;
 }
 
@@ -187,6 +314,26 @@ Java_com_aicodix_assempix_MainActivity_processDecoder(
 		reinterpret_cast<int16_t *>(audioBuffer),
 		channelSelect, colorTint);
 
+	if (journal) {
+		switch (status) {
+			case STATUS_SYNC:
+				journal->append(journal_record(decoder, JOURNAL_SYNC));
+				break;
+			case STATUS_FAIL:
+				journal->append(journal_record(decoder, JOURNAL_FAIL));
+				break;
+			case STATUS_NOPE:
+				journal->append(journal_record(decoder, JOURNAL_NOPE));
+				break;
+			case STATUS_HEAP:
+				journal->append(journal_record(decoder, JOURNAL_HEAP));
+				break;
+		}
+	}
+
+	if (history)
+		history->write(reinterpret_cast<int16_t *>(audioBuffer), env->GetArrayLength(JNI_audioBuffer) / history->channels());
+
 	env->ReleaseShortArrayElements(JNI_audioBuffer, audioBuffer, JNI_ABORT);
 	audioBufferFail:
 	env->ReleaseIntArrayElements(JNI_peakMeterPixels, peakMeterPixels, 0);
@@ -200,3 +347,204 @@ Java_com_aicodix_assempix_MainActivity_processDecoder(
 
 	return status;
 }
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_aicodix_assempix_MainActivity_createHistory(
+	JNIEnv *env,
+	jobject,
+	jstring JNI_path,
+	jint sampleRate,
+	jint channelCount,
+	jint seconds) {
+	std::lock_guard<std::mutex> lock(history_mutex);
+	if (history && history->rate() == sampleRate && history->channels() == channelCount && history->frames() == sampleRate * seconds)
+		return true;
+	delete history;
+	history = new(std::nothrow) History();
+	const char *path = env->GetStringUTFChars(JNI_path, nullptr);
+	if (history && !(path && history->open(path, sampleRate, channelCount, seconds))) {
+		delete history;
+		history = nullptr;
+	}
+	if (path)
+		env->ReleaseStringUTFChars(JNI_path, path);
+	return history != nullptr;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_aicodix_assempix_MainActivity_markHistory(
+	JNIEnv *,
+	jobject) {
+	std::lock_guard<std::mutex> lock(history_mutex);
+	if (!history)
+		return -1;
+	return history->written();
+}
+
+// holds the lock only while copying a chunk from the ring, never across file I/O
+static bool exportHistory(const char *path) {
+	const History *source;
+	int64_t begin, end;
+	int channels;
+	uint8_t riff[44];
+	{
+		std::lock_guard<std::mutex> lock(history_mutex);
+		if (!history)
+			return false;
+		source = history;
+		channels = history->channels();
+		end = history->written();
+		begin = history->oldest();
+		history->wav_header(riff, end - begin);
+	}
+	FILE *file = fopen(path, "wb");
+	if (!file)
+		return false;
+	bool okay = fwrite(riff, sizeof(riff), 1, file) == 1;
+	int16_t temp[4096];
+	uint8_t bytes[sizeof(temp)];
+	int chunk = sizeof(temp) / (channels * sizeof(int16_t));
+	for (int64_t pos = begin; okay && pos < end; pos += chunk) {
+		int copy = std::min<int64_t>(chunk, end - pos);
+		{
+			std::lock_guard<std::mutex> lock(history_mutex);
+			okay = history == source && history->channels() == channels && history->read(temp, pos, copy);
+		}
+		History::wav_samples(bytes, temp, channels * copy);
+		okay = okay && fwrite(bytes, sizeof(int16_t) * channels * copy, 1, file) == 1;
+	}
+	return fclose(file) == 0 && okay;
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_aicodix_assempix_MainActivity_exportHistory(
+	JNIEnv *env,
+	jobject,
+	jstring JNI_path) {
+	jboolean status = false;
+	const char *path = env->GetStringUTFChars(JNI_path, nullptr);
+	if (path) {
+		status = exportHistory(path);
+		env->ReleaseStringUTFChars(JNI_path, path);
+	}
+	return status;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_aicodix_assempix_MainActivity_redecodeHistory(
+	JNIEnv *env,
+	jobject,
+	jlong sync,
+	jint channelSelect,
+	jbyteArray JNI_payload,
+	jfloatArray JNI_carrierFrequencyOffset,
+	jintArray JNI_operationMode,
+	jbyteArray JNI_callSign,
+	jfloatArray JNI_clockDrift) {
+	int sampleRate, channelCount;
+	int64_t written, oldest;
+	{
+		std::lock_guard<std::mutex> lock(history_mutex);
+		if (!history)
+			return -1;
+		sampleRate = history->rate();
+		channelCount = history->channels();
+		written = history->written();
+		oldest = written - history->frames() + sampleRate;
+	}
+	int symbolLength = (1280 * sampleRate) / 8000;
+	int guardLength = symbolLength / 8;
+	int extendedLength = symbolLength + guardLength;
+	// the longest frame: preamble, reference and 126 data symbols
+	int frameLength = 128 * extendedLength;
+	// the blocks of the redecoder are not aligned to the live ones, so its sync can be a block off
+	int syncSlack = 2 * extendedLength;
+	// enough lead for the preamble to pass through the buffers of the redecoder
+	int64_t begin = std::max<int64_t>(sync - 8 * extendedLength, oldest);
+	int64_t end = std::min<int64_t>(sync + frameLength + syncSlack, written);
+	int channels[4], offsets[4], count = 0;
+	if (channelCount == 2) {
+		for (int i = 1; i <= 4; ++i) {
+			if (i != channelSelect) {
+				channels[count] = i;
+				offsets[count++] = 0;
+			}
+		}
+	}
+	for (int i = -1; i <= 1; i += 2) {
+		channels[count] = channelSelect;
+		offsets[count++] = i * guardLength / 4;
+	}
+	struct Scratch {
+		uint32_t spectrum[640 * 64], spectrogram[640 * 64], constellation[64 * 64], peakMeter[16];
+		uint8_t payload[5380];
+	};
+	auto scratch = new(std::nothrow) Scratch;
+	auto audioBuffer = new(std::nothrow) int16_t[extendedLength * channelCount];
+	jint status = -1;
+	for (int k = 0; scratch && audioBuffer && status < 0 && k < count; ++k) {
+		Interface *redecoder = newDecoder(sampleRate);
+		if (!redecoder)
+			break;
+		redecoder->shift(offsets[k]);
+		int64_t synced = -1;
+		for (int64_t pos = begin; status < 0 && pos + extendedLength <= end; pos += extendedLength) {
+			bool inside = synced >= sync - syncSlack && synced <= sync + syncSlack;
+			// the failed frame did not sync on this variant
+			if (pos > sync + syncSlack && !inside)
+				break;
+			{
+				std::lock_guard<std::mutex> lock(history_mutex);
+				if (!history || history->rate() != sampleRate || history->channels() != channelCount || !history->read(audioBuffer, pos, extendedLength))
+					break;
+			}
+			int process = redecoder->process(scratch->spectrum, scratch->spectrogram, scratch->constellation, scratch->peakMeter, audioBuffer, channels[k], 0);
+			if (process == STATUS_SYNC)
+				synced = pos + extendedLength;
+			if (process != STATUS_DONE)
+				continue;
+			// only the failed frame itself, the frames around it were already handled by the live decoder
+			if (!inside)
+				continue;
+			status = redecoder->fetch(scratch->payload);
+			if (status < 0)
+				continue;
+			if (journal)
+				journal->append(journal_record(redecoder, JOURNAL_REDO, status, scratch->payload));
+			float carrierFrequencyOffset;
+			int32_t operationMode;
+			int8_t callSign[9];
+			float clockDrift[2];
+			redecoder->cached(&carrierFrequencyOffset, &operationMode, callSign);
+			redecoder->drift(clockDrift, clockDrift + 1);
+			env->SetByteArrayRegion(JNI_payload, 0, sizeof(scratch->payload), reinterpret_cast<jbyte *>(scratch->payload));
+			env->SetFloatArrayRegion(JNI_carrierFrequencyOffset, 0, 1, &carrierFrequencyOffset);
+			env->SetIntArrayRegion(JNI_operationMode, 0, 1, reinterpret_cast<jint *>(&operationMode));
+			env->SetByteArrayRegion(JNI_callSign, 0, 9, reinterpret_cast<jbyte *>(callSign));
+			env->SetFloatArrayRegion(JNI_clockDrift, 0, 2, clockDrift);
+		}
+		delete redecoder;
+	}
+	delete[] audioBuffer;
+	delete scratch;
+	return status;
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_aicodix_assempix_MainActivity_createJournal(
+	JNIEnv *env,
+	jobject,
+	jstring JNI_path,
+	jint capacity) {
+	if (journal)
+		return true;
+	journal = new(std::nothrow) Journal();
+	const char *path = env->GetStringUTFChars(JNI_path, nullptr);
+	if (journal && !(path && journal->open(path, capacity))) {
+		delete journal;
+		journal = nullptr;
+	}
+	if (path)
+		env->ReleaseStringUTFChars(JNI_path, path);
+	return journal != nullptr;
+}
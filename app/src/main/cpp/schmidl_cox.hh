@@ -25,7 +25,7 @@ class SchmidlCox {
 	DSP::SchmittTrigger<value> threshold;
 	DSP::FallingEdgeTrigger falling;
 	cmplx tmp0[symbol_len], tmp1[symbol_len], tmp2[symbol_len];
-	cmplx kern[symbol_len];
+	const cmplx *kern;
 	value timing_max = 0;
 	value phase_max = 0;
 	int index_max = 0;
@@ -48,12 +48,17 @@ public:
 	value cfo_rad = 0;
 	value frac_cfo = 0;
 
-	SchmidlCox(const cmplx *sequence) : threshold(value(0.17 * match_len), value(0.19 * match_len)) {
+	// computes the matched filter for the sequence once, so it can be shared between correlators
+	static void kernel(cmplx *kern, const cmplx *sequence) {
+		DSP::FastFourierTransform<symbol_len, cmplx, -1> fwd;
 		fwd(kern, sequence);
 		for (int i = 0; i < symbol_len; ++i)
 			kern[i] = conj(kern[i]) / value(symbol_len);
 	}
 
+	SchmidlCox(const cmplx *kernel) : threshold(value(0.17 * match_len), value(0.19 * match_len)), kern(kernel) {
+	}
+
 	bool operator()(const cmplx *samples) {
 		cmplx P = cor(samples[search_pos + symbol_len] * conj(samples[search_pos + 2 * symbol_len]));
 		value R = value(0.5) * pwr(norm(samples[search_pos + 2 * symbol_len]));
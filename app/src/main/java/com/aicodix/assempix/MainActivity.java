@@ -25,6 +25,7 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.view.Gravity;
@@ -54,10 +55,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -67,17 +70,35 @@ public class MainActivity extends AppCompatActivity {
 	}
 
 	private final int permissionID = 1;
+	private final int historySeconds = 120;
+	private final int redecodeSeconds = 30;
+	private final int journalRecords = 65536;
+	private final int speculativeThreadsMax = 3;
+	private final int redecodeQueueMax = 4;
+	private final int workspaceIdleSeconds = 60;
 	private ShareActionProvider share;
 	private AudioRecord audioRecord;
 	private int sampleRate;
 	private int channelSelect;
 	private int audioSource;
 	private int bitFlips;
+	private long frameSync;
 	private int colorTint;
 	private int currentBlockCount;
+	private int identCount;
 	private int currentImageBytes;
 	private long currentImageCRC32;
 	private long messageMillis;
+	private boolean messagePending;
+	private String messageText;
+	private int messageStatus;
+	private int messageArg0, messageArg1;
+	private boolean messageCall;
+	private float messageCarrierFrequencyOffset;
+	private int messageOperationMode;
+	private byte[] messageCallSign;
+	private final ExecutorService redecodeExecutor = Executors.newSingleThreadExecutor();
+	private final List<RedecodeJob> redecodeQueue = new ArrayList<>();
 	private short[] audioBuffer;
 	private ActivityMainBinding binding;
 	private Menu menu;
@@ -86,20 +107,26 @@ public class MainActivity extends AppCompatActivity {
 	private final int spectrogramWidth = 640, spectrogramHeight = 64;
 	private final int constellationWidth = 64, constellationHeight = 64;
 	private final int peakMeterWidth = 16, peakMeterHeight = 1;
+	private final int chunkOverhead = 14, chunksMax = 12;
 	private Bitmap spectrumBitmap, spectrogramBitmap, constellationBitmap, peakMeterBitmap;
 	private int[] spectrumPixels, spectrogramPixels, constellationPixels, peakMeterPixels;
 	private int[] operationMode;
 	private float[] carrierFrequencyOffset;
+	private float[] clockDrift;
 	private byte[] callSign;
 	private byte[] payload;
-	private String callTrim;
-	private HashSet<Integer> identList;
+	private byte[] imageData;
+	private int[] nopeOperationMode;
+	private float[] nopeCarrierFrequencyOffset;
+	private byte[] nopeCallSign;
+	private boolean callValid;
+	private BitSet identList;
 
 	private native boolean createCRSEC();
 
 	private native boolean chunkCRSEC(byte[] payload, int blockIndex, int blockIdent);
 
-	private native long recoverCRSEC(byte[] payload, int blockCount);
+	private native long recoverCRSEC(byte[] payload, int imageBytes, int blockCount);
 
 	private native int processDecoder(int[] spectrumPixels, int[] spectrogramPixels, int[] constellationPixels, int[] peakMeterPixels, short[] audioBuffer, int channelSelect, int colorTint);
 
@@ -111,6 +138,32 @@ public class MainActivity extends AppCompatActivity {
 
 	private native void destroyDecoder();
 
+	private native void prepareDecoders();
+
+	private native String memoryDecoder();
+
+	private native void trimDecoder();
+
+	private native void speculateDecoder(int threads);
+
+	private native int retryDecoder(long mark, byte[] payload, float[] carrierFrequencyOffset, int[] operationMode, byte[] callSign, float[] clockDrift);
+
+	private native void driftDecoder(float[] clockDrift);
+
+	private native boolean createHistory(String path, int sampleRate, int channelCount, int seconds);
+
+	private native long markHistory();
+
+	private native boolean exportHistory(String path);
+
+	private native boolean createJournal(String path, int capacity);
+
+	private native int redecodeHistory(long sync, int channelSelect, byte[] payload, float[] carrierFrequencyOffset, int[] operationMode, byte[] callSign, float[] clockDrift);
+
+	private final Runnable messageRunnable = this::showMessage;
+
+	private final Runnable trimRunnable = this::trimDecoder;
+
 	private final AudioRecord.OnRecordPositionUpdateListener audioListener = new AudioRecord.OnRecordPositionUpdateListener() {
 		@Override
 		public void onMarkerReached(AudioRecord ignore) {
@@ -140,70 +193,199 @@ public class MainActivity extends AppCompatActivity {
 					break;
 				case STATUS_FAIL:
 					statusMessage(R.string.preamble_fail);
+					scheduleRedecode(redecodeSeconds * 1000L, markHistory(), false);
 					break;
 				case STATUS_NOPE:
-					float[] cfo = new float[1];
-					int[] mode = new int[1];
-					byte[] call = new byte[9];
-					cachedDecoder(cfo, mode, call);
-					String trim = new String(call).trim();
-					String info = getString(mode[0] == 0 ? R.string.received_ping : R.string.preamble_nope);
-					stringMessage(getString(R.string.status_message, cfo[0], modeString(mode[0]), trim, info));
+					cachedDecoder(nopeCarrierFrequencyOffset, nopeOperationMode, nopeCallSign);
+					int info = nopeOperationMode[0] == 0 ? R.string.received_ping : R.string.preamble_nope;
+					statusMessage(info, 0, 0, nopeCarrierFrequencyOffset[0], nopeOperationMode[0], nopeCallSign);
 					break;
 				case STATUS_HEAP:
-					stringMessage(getString(R.string.heap_error));
+					statusMessage(R.string.heap_error, 0, 0, 0, 0, null);
 					break;
 				case STATUS_SYNC:
 					cachedDecoder(carrierFrequencyOffset, operationMode, callSign);
-					callTrim = new String(callSign).trim();
+					callValid = true;
+					frameSync = markHistory();
 					statusMessage(R.string.preamble_sync);
 					break;
 				case STATUS_DONE:
 					bitFlips = fetchDecoder(payload);
+					scheduleTrim();
+					driftDecoder(clockDrift);
 					if (bitFlips >= 0)
-						decodePayload();
-					else
-						statusMessage(R.string.decoding_failed);
+						decodePayload(payload, bitFlips, clockDrift[0], carrierFrequencyOffset[0], operationMode[0], callSign);
+					else {
+						statusMessage(R.string.decoding_failed_drift, Math.round(clockDrift[0]), Math.round(clockDrift[1]));
+						// a second is more than the block the redecoder may need past the end of the frame
+						scheduleRedecode(1000, frameSync, true);
+					}
 					break;
 			}
 		}
 	};
 
+	// the pooled workspace only speeds up back to back frames, so it is handed back after a while without any
+	private void scheduleTrim() {
+		handler.removeCallbacks(trimRunnable);
+		handler.postDelayed(trimRunnable, workspaceIdleSeconds * 1000L);
+	}
+
+	private static class RedecodeJob {
+		final long mark, sync;
+		final int channel;
+		final boolean retry;
+
+		RedecodeJob(long mark, long sync, int channel, boolean retry) {
+			this.mark = mark;
+			this.sync = sync;
+			this.channel = channel;
+			this.retry = retry;
+		}
+	}
+
+	private void scheduleRedecode(long delayMillis, long sync, boolean retry) {
+		RedecodeJob job = new RedecodeJob(markHistory(), sync, channelSelect, retry);
+		handler.postDelayed(() -> queueRedecode(job), delayMillis);
+	}
+
+	// false preamble triggers on a noisy band come faster than they can be redecoded, so they are dropped first
+	private void queueRedecode(RedecodeJob job) {
+		int symbolLength = (1280 * sampleRate) / 8000;
+		int extendedLength = symbolLength + symbolLength / 8;
+		long frameLength = 128L * extendedLength;
+		synchronized (redecodeQueue) {
+			if (!job.retry) {
+				for (RedecodeJob queued : redecodeQueue)
+					if (!queued.retry && job.sync >= queued.sync && job.sync < queued.sync + frameLength)
+						return;
+			}
+			if (redecodeQueue.size() >= redecodeQueueMax) {
+				if (!job.retry)
+					return;
+				// the head is running, evict the latest preamble failure behind it for the frame that synced
+				int evict = -1;
+				for (int i = 1; i < redecodeQueue.size(); ++i)
+					if (!redecodeQueue.get(i).retry)
+						evict = i;
+				if (evict < 0)
+					return;
+				redecodeQueue.remove(evict);
+			}
+			redecodeQueue.add(job);
+		}
+		redecodeExecutor.execute(this::redecodeNext);
+	}
+
+	// runs on the redecode worker, which takes the failed frames one after the other
+	private void redecodeNext() {
+		RedecodeJob job;
+		synchronized (redecodeQueue) {
+			if (redecodeQueue.isEmpty())
+				return;
+			job = redecodeQueue.get(0);
+		}
+		redecode(job);
+		synchronized (redecodeQueue) {
+			redecodeQueue.remove(job);
+		}
+		handler.post(this::scheduleTrim);
+	}
+
+	private void redecode(RedecodeJob job) {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		byte[] redecodePayload = new byte[payload.length];
+		float[] redecodeCarrierFrequencyOffset = new float[1];
+		int[] redecodeOperationMode = new int[1];
+		byte[] redecodeCallSign = new byte[callSign.length];
+		float[] redecodeClockDrift = new float[clockDrift.length];
+		int flips = -1;
+		if (job.retry)
+			flips = retryDecoder(job.mark, redecodePayload, redecodeCarrierFrequencyOffset, redecodeOperationMode, redecodeCallSign, redecodeClockDrift);
+		if (flips < 0)
+			flips = redecodeHistory(job.sync, job.channel, redecodePayload, redecodeCarrierFrequencyOffset, redecodeOperationMode, redecodeCallSign, redecodeClockDrift);
+		final int redecodeFlips = flips;
+		if (redecodeFlips >= 0)
+			handler.post(() -> decodePayload(redecodePayload, redecodeFlips, redecodeClockDrift[0], redecodeCarrierFrequencyOffset[0], redecodeOperationMode[0], redecodeCallSign));
+	}
+
+	private void storeHistory() {
+		File dir = getExternalFilesDir(null);
+		if (dir == null) {
+			stringMessage(getString(R.string.history_export_failed));
+			return;
+		}
+		String name = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".wav";
+		String path = new File(dir, name).toString();
+		new Thread(() -> {
+			boolean okay = exportHistory(path);
+			handler.post(() -> stringMessage(okay ? getString(R.string.history_exported, name) : getString(R.string.history_export_failed)));
+		}).start();
+	}
+
 	private String modeString(int mode) {
 		if (mode >= 0 && mode <= 13)
 			return getResources().getStringArray(R.array.operation_modes)[mode];
 		return getString(R.string.mode_unsupported, mode);
 	}
 
-	private void stringMessage(String text) {
-		long currentMillis = SystemClock.elapsedRealtime();
-		long difference = currentMillis - messageMillis;
+	private void showMessage() {
+		messagePending = false;
+		messageMillis = SystemClock.elapsedRealtime();
+		if (messageText != null) {
+			binding.message.setText(messageText);
+			return;
+		}
+		String statMsg = getString(messageStatus, messageArg0, messageArg1);
+		if (messageCall)
+			binding.message.setText(getString(R.string.status_message, messageCarrierFrequencyOffset, modeString(messageOperationMode), new String(messageCallSign).trim(), statMsg));
+		else
+			binding.message.setText(statMsg);
+	}
+
+	// only the latest message is shown, when messages arrive faster than they can be read
+	private void postMessage() {
+		if (messagePending)
+			return;
 		long interval = 3000;
-		if (difference < interval) {
-			messageMillis += interval;
-			long delayMillis = messageMillis - currentMillis;
-			handler.postDelayed(() -> binding.message.setText(text), delayMillis);
+		long delayMillis = messageMillis + interval - SystemClock.elapsedRealtime();
+		if (delayMillis > 0) {
+			messagePending = true;
+			handler.postDelayed(messageRunnable, delayMillis);
 		} else {
-			messageMillis = currentMillis;
-			binding.message.setText(text);
+			showMessage();
 		}
 	}
 
+	private void stringMessage(String text) {
+		messageText = text;
+		postMessage();
+	}
+
+	private void statusMessage(int status, int arg0, int arg1, float cfo, int mode, byte[] call) {
+		messageText = null;
+		messageStatus = status;
+		messageArg0 = arg0;
+		messageArg1 = arg1;
+		messageCall = call != null;
+		if (messageCall) {
+			messageCarrierFrequencyOffset = cfo;
+			messageOperationMode = mode;
+			System.arraycopy(call, 0, messageCallSign, 0, messageCallSign.length);
+		}
+		postMessage();
+	}
+
+	private void statusMessage(int status, int arg0, int arg1) {
+		statusMessage(status, arg0, arg1, carrierFrequencyOffset[0], operationMode[0], callValid ? callSign : null);
+	}
+
 	private void statusMessage(int status) {
-		String statMsg;
-		if (status == R.string.image_received)
-			statMsg = getString(status, bitFlips);
-		else if (status == R.string.chunk_received)
-			statMsg = getString(status, identList.size(), currentBlockCount);
-		else
-			statMsg = getString(status);
-		if (callTrim != null)
-			stringMessage(getString(R.string.status_message, carrierFrequencyOffset[0], modeString(operationMode[0]), callTrim, statMsg));
-		else
-			stringMessage(getString(status));
+		statusMessage(status, 0, 0);
 	}
 
-	private void storeImage(byte[] data, String mime, String suffix, Date date) {
+	private void storeImage(byte[] data, int length, String mime, String suffix, Date date, float cfo, int mode, byte[] call) {
+		String callTrim = new String(call).trim();
 		String name = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(date);
 		String title = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(date);
 		name += "_" + callTrim.replace(' ', '_') + suffix;
@@ -213,17 +395,17 @@ public class MainActivity extends AppCompatActivity {
 		if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.P) {
 			dir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
 			if (!dir.exists() && !dir.mkdirs()) {
-				statusMessage(R.string.creating_picture_directory_failed);
+				statusMessage(R.string.creating_picture_directory_failed, 0, 0, cfo, mode, call);
 				return;
 			}
 			File file;
 			try {
 				file = new File(dir, name);
 				FileOutputStream stream = new FileOutputStream(file);
-				stream.write(data);
+				stream.write(data, 0, length);
 				stream.close();
 			} catch (IOException e) {
-				statusMessage(R.string.creating_picture_file_failed);
+				statusMessage(R.string.creating_picture_file_failed, 0, 0, cfo, mode, call);
 				return;
 			}
 			values.put(MediaStore.Images.ImageColumns.DATA, file.toString());
@@ -237,22 +419,22 @@ public class MainActivity extends AppCompatActivity {
 		ContentResolver resolver = getContentResolver();
 		Uri uri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
 		if (uri == null) {
-			statusMessage(R.string.storing_picture_failed);
+			statusMessage(R.string.storing_picture_failed, 0, 0, cfo, mode, call);
 			return;
 		}
 		if (Build.VERSION.SDK_INT > Build.VERSION_CODES.P) {
 			try {
 				ParcelFileDescriptor descriptor = getContentResolver().openFileDescriptor(uri, "w");
 				if (descriptor == null) {
-					statusMessage(R.string.storing_picture_failed);
+					statusMessage(R.string.storing_picture_failed, 0, 0, cfo, mode, call);
 					return;
 				}
 				FileOutputStream stream = new FileOutputStream(descriptor.getFileDescriptor());
-				stream.write(data);
+				stream.write(data, 0, length);
 				stream.close();
 				descriptor.close();
 			} catch (IOException e) {
-				statusMessage(R.string.storing_picture_failed);
+				statusMessage(R.string.storing_picture_failed, 0, 0, cfo, mode, call);
 				return;
 			}
 			values.clear();
@@ -268,50 +450,52 @@ public class MainActivity extends AppCompatActivity {
 		toast.show();
 	}
 
-	private void decodePayload() {
+	// the call sign, mode and offset of the frame, as a redecoded frame is not the one the live fields describe
+	private void decodePayload(byte[] payload, int flips, float drift, float cfo, int mode, byte[] call) {
 		byte[] data = payload;
+		int length = payload.length;
 		if (payload[0] == 'C' && payload[1] == 'R' && payload[2] == 'S') {
-			int overhead = 14;
-			int chunksMax = 12;
-			int availBytes = 5380;
-			int bytesMax = (availBytes - overhead) * chunksMax;
+			int bytesMax = imageData.length;
 			int blockCount = ((payload[4] & 255) << 8) + (payload[3] & 255) + 1;
 			int blockIdent = ((payload[6] & 255) << 8) + (payload[5] & 255);
 			int imageBytes = ((payload[9] & 255) << 16) + ((payload[8] & 255) << 8) + (payload[7] & 255) + 1;
 			long imageCRC32 = ((payload[13] & 255L) << 24) + ((payload[12] & 255L) << 16) + ((payload[11] & 255L) << 8) + (payload[10] & 255L);
 			if (blockCount > chunksMax || blockIdent < blockCount || imageBytes > bytesMax) {
-				statusMessage(R.string.chunk_unsupported);
+				statusMessage(R.string.chunk_unsupported, 0, 0, cfo, mode, call);
 				return;
 			}
 			if (currentBlockCount != blockCount || currentImageBytes != imageBytes || currentImageCRC32 != imageCRC32) {
-				identList = new HashSet<>();
+				identList.clear();
+				identCount = 0;
 				currentBlockCount = blockCount;
 				currentImageBytes = imageBytes;
 				currentImageCRC32 = imageCRC32;
 			}
-			if (identList.contains(blockIdent)) {
-				statusMessage(R.string.chunk_duplicate);
+			if (identList.get(blockIdent)) {
+				statusMessage(R.string.chunk_duplicate, 0, 0, cfo, mode, call);
 				return;
 			}
-			if (identList.size() == blockCount) {
-				statusMessage(R.string.chunk_redundant);
+			if (identCount == blockCount) {
+				statusMessage(R.string.chunk_redundant, 0, 0, cfo, mode, call);
 				return;
 			}
-			if (!chunkCRSEC(payload, identList.size(), blockIdent)) {
-				statusMessage(R.string.heap_error);
+			if (!chunkCRSEC(payload, identCount, blockIdent)) {
+				statusMessage(R.string.heap_error, 0, 0, cfo, mode, call);
 				currentBlockCount = 0;
 				currentImageBytes = 0;
 				currentImageCRC32 = 0;
 				return;
 			}
-			identList.add(blockIdent);
-			statusMessage(R.string.chunk_received);
-			if (identList.size() < blockCount) {
+			identList.set(blockIdent);
+			++identCount;
+			statusMessage(R.string.chunk_received, identCount, currentBlockCount, cfo, mode, call);
+			if (identCount < blockCount) {
 				return;
 			}
-			data = new byte[currentImageBytes];
-			if (currentImageCRC32 != recoverCRSEC(data, identList.size())) {
-				statusMessage(R.string.chunk_corrupted);
+			data = imageData;
+			length = currentImageBytes;
+			if (currentImageCRC32 != recoverCRSEC(data, length, identCount)) {
+				statusMessage(R.string.chunk_corrupted, 0, 0, cfo, mode, call);
 				currentBlockCount = 0;
 				currentImageBytes = 0;
 				currentImageCRC32 = 0;
@@ -320,9 +504,9 @@ public class MainActivity extends AppCompatActivity {
 		}
 		BitmapFactory.Options opt = new BitmapFactory.Options();
 		opt.inJustDecodeBounds = true;
-		BitmapFactory.decodeByteArray(data, 0, data.length, opt);
+		BitmapFactory.decodeByteArray(data, 0, length, opt);
 		if (opt.outMimeType == null) {
-			statusMessage(R.string.payload_unknown);
+			statusMessage(R.string.payload_unknown, 0, 0, cfo, mode, call);
 			return;
 		}
 		String suffix;
@@ -347,24 +531,24 @@ public class MainActivity extends AppCompatActivity {
 					break;
 				}
 			default:
-				statusMessage(R.string.payload_unknown);
+				statusMessage(R.string.payload_unknown, 0, 0, cfo, mode, call);
 				return;
 		}
 		if (opt.outWidth < 16 || opt.outWidth > 1024 || opt.outHeight < 16 || opt.outHeight > 1024) {
-			statusMessage(R.string.payload_unknown);
+			statusMessage(R.string.payload_unknown, 0, 0, cfo, mode, call);
 			return;
 		}
-		Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+		Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, length);
 		if (bitmap == null) {
-			statusMessage(R.string.decoding_failed);
+			statusMessage(R.string.decoding_failed, 0, 0, cfo, mode, call);
 			return;
 		}
-		statusMessage(R.string.image_received);
+		statusMessage(R.string.image_received, flips, Math.round(drift), cfo, mode, call);
 		binding.image.setImageBitmap(bitmap);
 		Date date = new Date();
 		String hour = new SimpleDateFormat("HH:mm:ss", Locale.US).format(date);
-		setTitle(hour + " - " + callTrim + " - " + type);
-		storeImage(data, opt.outMimeType, suffix, date);
+		setTitle(hour + " - " + new String(call).trim() + " - " + type);
+		storeImage(data, length, opt.outMimeType, suffix, date, cfo, mode, call);
 	}
 
 	private String getAudioSourceString(int audioSource) {
@@ -446,6 +630,9 @@ public class MainActivity extends AppCompatActivity {
 			AudioRecord testAudioRecord = new AudioRecord(audioSource, sampleRate, channelConfig, audioFormat, bufferSize);
 			if (testAudioRecord.getState() == AudioRecord.STATE_INITIALIZED) {
 				if (createDecoder(sampleRate)) {
+					int spareCores = Runtime.getRuntime().availableProcessors() - 1;
+					speculateDecoder(spareCores >= 2 ? Math.min(spareCores, speculativeThreadsMax) : 0);
+					createHistory(new File(getCacheDir(), "history.raw").toString(), sampleRate, channelCount, historySeconds);
 					audioRecord = testAudioRecord;
 					audioBuffer = new short[extendedLength * channelCount];
 					audioRecord.setRecordPositionUpdateListener(audioListener);
@@ -583,11 +770,26 @@ public class MainActivity extends AppCompatActivity {
 		spectrogramPixels = new int[spectrogramWidth * spectrogramHeight];
 		peakMeterPixels = new int[peakMeterWidth * peakMeterHeight];
 		carrierFrequencyOffset = new float[1];
+		clockDrift = new float[2];
 		operationMode = new int[1];
 		callSign = new byte[9];
 		payload = new byte[5380];
+		imageData = new byte[(payload.length - chunkOverhead) * chunksMax];
+		identList = new BitSet(65536);
+		nopeCarrierFrequencyOffset = new float[1];
+		nopeOperationMode = new int[1];
+		nopeCallSign = new byte[9];
+		messageCallSign = new byte[9];
 		if (!createCRSEC())
 			stringMessage(getString(R.string.heap_error));
+		File journalDir = getExternalFilesDir(null);
+		if (journalDir == null)
+			journalDir = getFilesDir();
+		createJournal(new File(journalDir, "journal.bin").toString(), journalRecords);
+		new Thread(() -> {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			prepareDecoders();
+		}).start();
 
 		List<String> permissions = new ArrayList<>();
 		if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
@@ -753,6 +955,15 @@ public class MainActivity extends AppCompatActivity {
 			System.exit(0);
 			return true;
 		}
+		if (id == R.id.action_export_history) {
+			storeHistory();
+			return true;
+		}
+		if (id == R.id.action_memory_usage) {
+			String report = memoryDecoder();
+			showTextPage(getString(R.string.memory_usage), report != null ? report : getString(R.string.heap_error));
+			return true;
+		}
 		if (id == R.id.action_privacy_policy) {
 			showTextPage(getString(R.string.privacy_policy), getString(R.string.privacy_policy_text));
 			return true;
@@ -785,8 +996,16 @@ public class MainActivity extends AppCompatActivity {
 		super.onPause();
 	}
 
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		trimDecoder();
+	}
+
 	@Override
 	protected void onDestroy() {
+		handler.removeCallbacksAndMessages(null);
+		redecodeExecutor.shutdownNow();
 		destroyDecoder();
 		super.onDestroy();
 	}
@@ -0,0 +1,493 @@
+/*
+Multi-stream COFDMTV gateway daemon
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#include <cstdint>
+#include <cstdlib>
+#include <cassert>
+#include <csignal>
+#include <ctime>
+#include <mutex>
+#include <thread>
+#include <condition_variable>
+#include <cerrno>
+#include <fcntl.h>
+#include <unistd.h>
+#include <poll.h>
+#include <sys/ioctl.h>
+#include <sys/socket.h>
+#include <sys/stat.h>
+#include <sys/un.h>
+#include "crsec.hh"
+#include "decoder.hh"
+#include "journal.hh"
+
+static Interface *newDecoder(int sampleRate) {
+	switch (sampleRate) {
+		case 8000:
+			return new(std::nothrow) Decoder<8000>();
+		case 16000:
+			return new(std::nothrow) Decoder<16000>();
+		case 32000:
+			return new(std::nothrow) Decoder<32000>();
+		case 44100:
+			return new(std::nothrow) Decoder<44100>();
+		case 48000:
+			return new(std::nothrow) Decoder<48000>();
+	}
+	return nullptr;
+}
+
+static int64_t nanoseconds(clockid_t clock) {
+	timespec ts;
+	clock_gettime(clock, &ts);
+	return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+static volatile sig_atomic_t running = 1;
+static Journal *journal;
+
+static void interrupt(int) {
+	running = 0;
+}
+
+struct Stream {
+	static const int queue_length = 64;
+	static const int payload_bytes = 5380;
+	static const int chunk_overhead = 14;
+	static const int chunks_max = 12;
+	static const int image_bytes_max = (payload_bytes - chunk_overhead) * chunks_max;
+	std::mutex mutex;
+	Interface *decoder = nullptr;
+	CauchyReedSolomonErasureCoding *crsec = nullptr;
+	int16_t *blocks = nullptr;
+	uint8_t *image = nullptr;
+	const char *name = nullptr;
+	const char *spool = nullptr;
+	int number = 0;
+	int fd = -1;
+	int rate = 0;
+	int block_length = 0;
+	int head = 0, count = 0, fill = 0;
+	bool scheduled = false;
+	int64_t processed = 0, cpu_time = 0;
+	int64_t prev_processed = 0, prev_cpu_time = 0;
+	int block_count = 0, image_bytes = 0;
+	uint32_t image_crc32 = 0;
+	int ident_list[chunks_max];
+	int ident_count = 0;
+	uint32_t spectrum[640 * 64], spectrogram[640 * 64], constellation[64 * 64], peak_meter[16];
+	uint8_t payload[payload_bytes];
+	float carrier_frequency_offset = 0;
+	int32_t operation_mode = 0;
+	int8_t call_sign[10] = {};
+
+	~Stream() {
+		delete decoder;
+		delete crsec;
+		delete[] blocks;
+		delete[] image;
+		if (fd >= 0)
+			close(fd);
+	}
+
+	bool open(int num, const char *arg, const char *dir) {
+		number = num;
+		spool = dir;
+		rate = std::atoi(arg);
+		name = std::strchr(arg, ':');
+		if (!name++)
+			return false;
+		block_length = (1280 * rate) / 8000 + (160 * rate) / 8000;
+		decoder = newDecoder(rate);
+		crsec = new(std::nothrow) CauchyReedSolomonErasureCoding();
+		blocks = new(std::nothrow) int16_t[queue_length * block_length];
+		image = new(std::nothrow) uint8_t[image_bytes_max];
+		if (!decoder || !crsec || !blocks || !image)
+			return false;
+		struct stat st;
+		if (stat(name, &st) < 0)
+			return false;
+		if (S_ISSOCK(st.st_mode)) {
+			sockaddr_un addr = {};
+			addr.sun_family = AF_UNIX;
+			std::strncpy(addr.sun_path, name, sizeof(addr.sun_path) - 1);
+			fd = socket(AF_UNIX, SOCK_STREAM, 0);
+			if (fd >= 0 && connect(fd, reinterpret_cast<sockaddr *>(&addr), sizeof(addr)) < 0) {
+				close(fd);
+				fd = -1;
+			}
+		} else {
+			// keep FIFOs open for writing too, so feeds can come and go without EOF
+			fd = ::open(name, (S_ISFIFO(st.st_mode) ? O_RDWR : O_RDONLY) | O_NONBLOCK);
+		}
+		return fd >= 0;
+	}
+
+	bool full() {
+		std::lock_guard<std::mutex> lock(mutex);
+		return count == queue_length;
+	}
+
+	int backlog() {
+		int bytes = 0;
+		if (fd >= 0 && ioctl(fd, FIONREAD, &bytes) < 0)
+			bytes = 0;
+		std::lock_guard<std::mutex> lock(mutex);
+		return count * block_length + (fill + bytes) / int(sizeof(int16_t));
+	}
+
+	// returns true if the stream needs to be scheduled
+	bool receive() {
+		int tail;
+		{
+			std::lock_guard<std::mutex> lock(mutex);
+			tail = (head + count) % queue_length;
+		}
+		int16_t *block = blocks + tail * block_length;
+		int size = sizeof(int16_t) * block_length;
+		ssize_t len = read(fd, reinterpret_cast<uint8_t *>(block) + fill, size - fill);
+		if (len <= 0) {
+			if (len < 0 && (errno == EAGAIN || errno == EINTR))
+				return false;
+			close(fd);
+			fd = -1;
+			if (!fill)
+				return false;
+			// zero pad the last partial block, so its samples are still decoded
+			std::memset(reinterpret_cast<uint8_t *>(block) + fill, 0, size - fill);
+			len = size - fill;
+		}
+		fill += len;
+		if (fill < size)
+			return false;
+		fill = 0;
+		std::lock_guard<std::mutex> lock(mutex);
+		++count;
+		if (scheduled)
+			return false;
+		scheduled = true;
+		return true;
+	}
+
+	// returns true if there are more blocks to process
+	bool work() {
+		const int16_t *block = blocks + head * block_length;
+		int64_t begin = nanoseconds(CLOCK_THREAD_CPUTIME_ID);
+		int status = decoder->process(spectrum, spectrogram, constellation, peak_meter, block, 0, 0);
+		handle(status);
+		int64_t end = nanoseconds(CLOCK_THREAD_CPUTIME_ID);
+		std::lock_guard<std::mutex> lock(mutex);
+		cpu_time += end - begin;
+		++processed;
+		head = (head + 1) % queue_length;
+		--count;
+		scheduled = count > 0;
+		return scheduled;
+	}
+
+	void log(int event, int flips = -1) {
+		if (!journal)
+			return;
+		JournalRecord record = journal_record(decoder, event, flips, event == JOURNAL_DONE || event == JOURNAL_LOST ? payload : nullptr);
+		record.stream = number;
+		journal->append(record);
+	}
+
+	void handle(int status) {
+		switch (status) {
+			case STATUS_FAIL:
+				log(JOURNAL_FAIL);
+				std::cerr << name << ": preamble failure" << std::endl;
+				break;
+			case STATUS_NOPE:
+				log(JOURNAL_NOPE);
+				decoder->cached(&carrier_frequency_offset, &operation_mode, call_sign);
+				std::cerr << name << ": ignoring mode " << operation_mode << " from " << call_sign << std::endl;
+				break;
+			case STATUS_HEAP:
+				log(JOURNAL_HEAP);
+				std::cerr << name << ": not enough memory" << std::endl;
+				break;
+			case STATUS_SYNC:
+				log(JOURNAL_SYNC);
+				decoder->cached(&carrier_frequency_offset, &operation_mode, call_sign);
+				std::cerr << name << ": mode " << operation_mode << " from " << call_sign << " at " << carrier_frequency_offset << " Hz" << std::endl;
+				break;
+			case STATUS_DONE:
+				int flips = decoder->fetch(payload);
+				if (flips < 0) {
+					// the workers already run in the background, so the retry can stay on this one
+					Frame *rec = decoder->failed();
+					flips = decoder->retry(payload, rec);
+					delete rec;
+				}
+				log(flips < 0 ? JOURNAL_LOST : JOURNAL_DONE, flips);
+				float drift, shift;
+				decoder->drift(&drift, &shift);
+				std::cerr << name << ": clock drift " << std::nearbyint(drift) << " ppm, timing corrected by " << std::nearbyint(shift) << " samples" << std::endl;
+				if (flips < 0)
+					std::cerr << name << ": decoding failed" << std::endl;
+				else
+					unpack(flips);
+				break;
+		}
+	}
+
+	void unpack(int flips) {
+		if (payload[0] != 'C' || payload[1] != 'R' || payload[2] != 'S') {
+			store(payload, payload_bytes, flips);
+			return;
+		}
+		int blocks = (payload[4] << 8) + payload[3] + 1;
+		int ident = (payload[6] << 8) + payload[5];
+		int bytes = (payload[9] << 16) + (payload[8] << 8) + payload[7] + 1;
+		uint32_t crc32 = (uint32_t(payload[13]) << 24) + (payload[12] << 16) + (payload[11] << 8) + payload[10];
+		if (blocks > chunks_max || ident < blocks || bytes > image_bytes_max) {
+			std::cerr << name << ": unsupported chunk format" << std::endl;
+			return;
+		}
+		if (block_count != blocks || image_bytes != bytes || image_crc32 != crc32) {
+			block_count = blocks;
+			image_bytes = bytes;
+			image_crc32 = crc32;
+			ident_count = 0;
+		}
+		for (int i = 0; i < ident_count; ++i) {
+			if (ident_list[i] == ident) {
+				std::cerr << name << ": duplicate chunk received" << std::endl;
+				return;
+			}
+		}
+		if (ident_count == block_count) {
+			std::cerr << name << ": redundant chunk received" << std::endl;
+			return;
+		}
+		crsec->chunk(payload, ident_count, ident);
+		ident_list[ident_count++] = ident;
+		std::cerr << name << ": chunk " << ident_count << " of " << block_count << " received" << std::endl;
+		if (ident_count < block_count)
+			return;
+		if (image_crc32 != uint32_t(crsec->recover(image, image_bytes, ident_count))) {
+			std::cerr << name << ": corrupted chunk image" << std::endl;
+			block_count = 0;
+			image_bytes = 0;
+			image_crc32 = 0;
+			return;
+		}
+		store(image, image_bytes, flips);
+	}
+
+	void store(const uint8_t *data, int size, int flips) {
+		const char *suffix;
+		if (data[0] == 0xff && data[1] == 0xd8 && data[2] == 0xff)
+			suffix = "jpg";
+		else if (!std::memcmp(data, "\x89PNG", 4))
+			suffix = "png";
+		else if (!std::memcmp(data, "RIFF", 4) && !std::memcmp(data + 8, "WEBP", 4))
+			suffix = "webp";
+		else if (!std::memcmp(data + 4, "ftypavif", 8))
+			suffix = "avif";
+		else {
+			std::cerr << name << ": payload unknown" << std::endl;
+			return;
+		}
+		char call[10];
+		std::memcpy(call, call_sign, sizeof(call));
+		for (int i = 0; i < 9; ++i)
+			if (call[i] == ' ')
+				call[i] = '_';
+		char *trim = call;
+		while (*trim == '_')
+			++trim;
+		char date[32];
+		time_t now = time(nullptr);
+		strftime(date, sizeof(date), "%Y%m%d_%H%M%S", localtime(&now));
+		char part[4096], path[4096];
+		snprintf(path, sizeof(path), "%s/%s_%s_%d.%s", spool, date, trim, number, suffix);
+		snprintf(part, sizeof(part), "%s/.%s_%s_%d.%s", spool, date, trim, number, suffix);
+		FILE *file = fopen(part, "wb");
+		bool okay = file && fwrite(data, size, 1, file) == 1;
+		if (file)
+			okay = fclose(file) == 0 && okay;
+		if (okay && rename(part, path) == 0) {
+			std::cerr << name << ": image received with " << flips << " bit flips, stored to " << path << std::endl;
+		} else {
+			std::cerr << name << ": storing image failed" << std::endl;
+			remove(part);
+		}
+	}
+};
+
+class Pool {
+	std::mutex mutex;
+	std::condition_variable cond;
+	Stream **queue;
+	int length, head = 0, count = 0;
+	bool stopped = false;
+public:
+	explicit Pool(int length) : queue(new Stream *[length]), length(length) {}
+
+	~Pool() {
+		delete[] queue;
+	}
+
+	void push(Stream *stream) {
+		{
+			std::lock_guard<std::mutex> lock(mutex);
+			queue[(head + count++) % length] = stream;
+		}
+		cond.notify_one();
+	}
+
+	Stream *pop() {
+		std::unique_lock<std::mutex> lock(mutex);
+		cond.wait(lock, [this] { return count > 0 || stopped; });
+		if (!count)
+			return nullptr;
+		Stream *stream = queue[head];
+		head = (head + 1) % length;
+		--count;
+		return stream;
+	}
+
+	bool idle() {
+		std::lock_guard<std::mutex> lock(mutex);
+		return !count;
+	}
+
+	void stop() {
+		{
+			std::lock_guard<std::mutex> lock(mutex);
+			stopped = true;
+		}
+		cond.notify_all();
+	}
+};
+
+static void report(Stream **streams, int count, int64_t wall_time) {
+	for (int i = 0; i < count; ++i) {
+		Stream *stream = streams[i];
+		int backlog = stream->backlog();
+		int64_t processed, cpu_time;
+		{
+			std::lock_guard<std::mutex> lock(stream->mutex);
+			processed = stream->processed - stream->prev_processed;
+			cpu_time = stream->cpu_time - stream->prev_cpu_time;
+			stream->prev_processed = stream->processed;
+			stream->prev_cpu_time = stream->cpu_time;
+		}
+		double audio_time = double(processed * stream->block_length) / stream->rate;
+		double load = audio_time > 0 ? cpu_time / (1e9 * audio_time) : 0;
+		std::cerr << stream->name << ": real-time load " << 100 * load << "%, core usage "
+			<< 100 * cpu_time / double(wall_time) << "%, backlog "
+			<< double(backlog) / stream->rate << " s" << (stream->fd < 0 ? ", closed" : "") << std::endl;
+	}
+	int busy, idle;
+	WorkspaceArena::count(&busy, &idle);
+	std::cerr << "workspaces: " << busy << " in use, " << idle << " pooled, "
+		<< (WorkspaceArena::size + 1023) / 1024 << " KiB each" << std::endl;
+}
+
+int main(int argc, char **argv) {
+	int workers = std::thread::hardware_concurrency();
+	int report_seconds = 10;
+	int speculative_threads = 0;
+	const char *journal_path = nullptr;
+	int arg = 1;
+	for (; arg + 1 < argc && argv[arg][0] == '-'; arg += 2) {
+		if (!std::strcmp(argv[arg], "-w"))
+			workers = std::atoi(argv[arg + 1]);
+		else if (!std::strcmp(argv[arg], "-r"))
+			report_seconds = std::atoi(argv[arg + 1]);
+		else if (!std::strcmp(argv[arg], "-j"))
+			journal_path = argv[arg + 1];
+		else if (!std::strcmp(argv[arg], "-s"))
+			speculative_threads = std::atoi(argv[arg + 1]);
+		else
+			break;
+	}
+	if (argc - arg < 2 || workers < 1 || report_seconds < 1) {
+		std::cerr << "usage: " << argv[0] << " [-w WORKERS] [-r REPORT_SECONDS] [-j JOURNAL] [-s SPECULATIVE_THREADS] SPOOL_DIR RATE:PATH.." << std::endl;
+		return 1;
+	}
+	const char *spool = argv[arg++];
+	if (journal_path) {
+		journal = new Journal();
+		// the capacity of a new journal, an existing one like that of the app keeps its own
+		if (!journal->open(journal_path, 1 << 20)) {
+			std::cerr << "could not open journal " << journal_path << std::endl;
+			return 1;
+		}
+	}
+	int count = argc - arg;
+	auto streams = new Stream *[count];
+	for (int i = 0; i < count; ++i) {
+		streams[i] = new(std::nothrow) Stream();
+		if (!streams[i] || !streams[i]->open(i, argv[arg + i], spool)) {
+			std::cerr << "could not open stream " << argv[arg + i] << std::endl;
+			return 1;
+		}
+		streams[i]->decoder->speculate(speculative_threads);
+		char text[1024];
+		if (streams[i]->decoder->memory(text, sizeof(text)) > 0)
+			std::cerr << streams[i]->name << ": " << text;
+	}
+	signal(SIGINT, interrupt);
+	signal(SIGTERM, interrupt);
+	signal(SIGPIPE, SIG_IGN);
+
+	Pool pool(count);
+	auto threads = new std::thread[workers];
+	for (int i = 0; i < workers; ++i) {
+		threads[i] = std::thread([&pool] {
+			while (Stream *stream = pool.pop())
+				if (stream->work())
+					pool.push(stream);
+		});
+	}
+
+	auto fds = new pollfd[count];
+	auto polled = new Stream *[count];
+	int64_t report_time = nanoseconds(CLOCK_MONOTONIC);
+	while (running) {
+		int open = 0, nfds = 0;
+		for (int i = 0; i < count; ++i) {
+			if (streams[i]->fd < 0)
+				continue;
+			++open;
+			if (streams[i]->full())
+				continue;
+			fds[nfds] = {streams[i]->fd, POLLIN, 0};
+			polled[nfds++] = streams[i];
+		}
+		if (!open && pool.idle())
+			break;
+		if (poll(fds, nfds, nfds ? 100 : 10) > 0) {
+			for (int i = 0; i < nfds; ++i)
+				if (fds[i].revents && polled[i]->receive())
+					pool.push(polled[i]);
+		}
+		int64_t now = nanoseconds(CLOCK_MONOTONIC);
+		if (now - report_time >= report_seconds * 1000000000LL) {
+			report(streams, count, now - report_time);
+			report_time = now;
+		}
+	}
+	while (running && !pool.idle())
+		std::this_thread::sleep_for(std::chrono::milliseconds(10));
+	pool.stop();
+	for (int i = 0; i < workers; ++i)
+		threads[i].join();
+	report(streams, count, nanoseconds(CLOCK_MONOTONIC) - report_time);
+	for (int i = 0; i < count; ++i)
+		delete streams[i];
+	delete[] streams;
+	delete[] threads;
+	delete[] fds;
+	delete[] polled;
+	delete journal;
+	return 0;
+}
@@ -0,0 +1,205 @@
+/*
+Query and export tool for the reception journal
+
+Copyright 2026 Ahmet Inan <inan@aicodix.de>
+*/
+
+#include <algorithm>
+#include <cstdint>
+#include <cstdlib>
+#include <cstdio>
+#include <map>
+#include <string>
+#include "journal.hh"
+
+static const char *event_name(int event) {
+	switch (event) {
+		case JOURNAL_SYNC:
+			return "sync";
+		case JOURNAL_DONE:
+			return "done";
+		case JOURNAL_LOST:
+			return "lost";
+		case JOURNAL_FAIL:
+			return "fail";
+		case JOURNAL_NOPE:
+			return "nope";
+		case JOURNAL_HEAP:
+			return "heap";
+		case JOURNAL_REDO:
+			return "redo";
+	}
+	return "unknown";
+}
+
+static bool parse_time(const char *str, int64_t *msec) {
+	const char *formats[] = {"%Y-%m-%dT%H:%M:%S", "%Y-%m-%dT%H:%M", "%Y-%m-%d"};
+	for (auto format: formats) {
+		tm t = {};
+		const char *end = strptime(str, format, &t);
+		if (end && !*end) {
+			t.tm_isdst = -1;
+			*msec = mktime(&t) * 1000LL;
+			return true;
+		}
+	}
+	return false;
+}
+
+static void format_time(char *str, size_t len, int64_t msec, const char *format) {
+	time_t sec = msec / 1000;
+	strftime(str, len, format, localtime(&sec));
+}
+
+struct Summary {
+	int64_t sync = 0, done = 0, lost = 0, fail = 0, nope = 0, heap = 0, redo = 0;
+	int64_t flips = 0;
+	double snr = 0, drift = 0;
+
+	void operator()(const JournalRecord &record) {
+		switch (record.event) {
+			case JOURNAL_SYNC:
+				++sync;
+				break;
+			case JOURNAL_REDO:
+				++redo;
+				// fall through
+			case JOURNAL_DONE:
+				++done;
+				flips += record.flips;
+				snr += record.snr;
+				drift += record.drift;
+				break;
+			case JOURNAL_LOST:
+				++lost;
+				snr += record.snr;
+				drift += record.drift;
+				break;
+			case JOURNAL_FAIL:
+				++fail;
+				break;
+			case JOURNAL_NOPE:
+				++nope;
+				break;
+			case JOURNAL_HEAP:
+				++heap;
+				break;
+		}
+	}
+
+	void print(const char *label) const {
+		// a redo was already counted as lost or failed, which a filter on the mode or call may have skipped
+		int64_t frames = std::max(done, done + lost + fail - redo);
+		printf("%-20s %8lld %8lld %8lld %8lld %8lld %8lld %7.1f%% %8.1f %8.1f %8.1f\n", label,
+			(long long) sync, (long long) done, (long long) lost, (long long) fail, (long long) nope, (long long) redo,
+			frames ? 100.0 * done / frames : 0.0,
+			done + lost ? snr / (done + lost) : 0.0,
+			done ? double(flips) / done : 0.0,
+			done + lost ? drift / (done + lost) : 0.0);
+	}
+
+	static void header(const char *label) {
+		printf("%-20s %8s %8s %8s %8s %8s %8s %8s %8s %8s %8s\n", label, "sync", "done", "lost", "fail", "nope", "redo", "rate", "snr", "flips", "ppm");
+	}
+};
+
+int main(int argc, char **argv) {
+	int64_t from = INT64_MIN, to = INT64_MAX;
+	const char *call = nullptr;
+	int mode = -1, stream = -1;
+	int arg = 1;
+	for (; arg + 1 < argc && argv[arg][0] == '-'; arg += 2) {
+		bool okay = true;
+		if (!std::strcmp(argv[arg], "-f"))
+			okay = parse_time(argv[arg + 1], &from);
+		else if (!std::strcmp(argv[arg], "-t"))
+			okay = parse_time(argv[arg + 1], &to);
+		else if (!std::strcmp(argv[arg], "-c"))
+			call = argv[arg + 1];
+		else if (!std::strcmp(argv[arg], "-m"))
+			mode = std::atoi(argv[arg + 1]);
+		else if (!std::strcmp(argv[arg], "-s"))
+			stream = std::atoi(argv[arg + 1]);
+		else
+			okay = false;
+		if (!okay) {
+			fprintf(stderr, "bad option %s %s\n", argv[arg], argv[arg + 1]);
+			return 1;
+		}
+	}
+	if (argc - arg != 2 || (std::strcmp(argv[arg], "list") && std::strcmp(argv[arg], "csv") && std::strcmp(argv[arg], "stats"))) {
+		fprintf(stderr, "usage: %s [-f FROM] [-t TO] [-c CALL] [-m MODE] [-s STREAM] list|csv|stats JOURNAL\n", argv[0]);
+		return 1;
+	}
+	const char *command = argv[arg];
+	Journal journal;
+	if (!journal.open_readonly(argv[arg + 1])) {
+		fprintf(stderr, "could not open journal %s\n", argv[arg + 1]);
+		return 1;
+	}
+	bool csv = !std::strcmp(command, "csv");
+	bool stats = !std::strcmp(command, "stats");
+	if (csv)
+		printf("time,stream,rate,event,mode,call,cfo,snr,flips,ident,blocks,drift,shift\n");
+	Summary total;
+	std::map<int, Summary> modes;
+	std::map<std::string, Summary> days, calls;
+	int64_t count = journal.count();
+	int64_t skipped = 0;
+	for (int64_t seq = std::max<int64_t>(0, count - journal.capacity()); seq < count; ++seq) {
+		JournalRecord record;
+		if (!journal.read(&record, seq)) {
+			++skipped;
+			continue;
+		}
+		if (record.time < from || record.time >= to)
+			continue;
+		if (call && std::strncmp(call, record.call, sizeof(record.call)))
+			continue;
+		if (mode >= 0 && record.mode != mode)
+			continue;
+		if (stream >= 0 && record.stream != stream)
+			continue;
+		if (stats) {
+			char day[16];
+			format_time(day, sizeof(day), record.time, "%Y-%m-%d");
+			total(record);
+			days[day](record);
+			if (record.event != JOURNAL_FAIL && record.event != JOURNAL_HEAP) {
+				modes[record.mode](record);
+				calls[std::string(record.call, strnlen(record.call, sizeof(record.call)))](record);
+			}
+			continue;
+		}
+		char time[32];
+		format_time(time, sizeof(time), record.time, csv ? "%Y-%m-%dT%H:%M:%S" : "%Y-%m-%d %H:%M:%S");
+		if (csv)
+			printf("%s.%03d,%d,%d,%s,%d,%.*s,%.2f,%.2f,%d,%d,%d,%.1f,%d\n", time, int(record.time % 1000),
+				record.stream, record.rate, event_name(record.event), record.mode,
+				int(strnlen(record.call, sizeof(record.call))), record.call,
+				record.cfo, record.snr, record.flips, record.ident, record.blocks,
+				record.drift, record.shift);
+		else
+			printf("%s %2d %5d %-4s %2d %-9.*s %8.2f Hz %6.2f dB %5d flips %5d/%d %7.1f ppm %4d\n", time,
+				record.stream, record.rate, event_name(record.event), record.mode,
+				int(strnlen(record.call, sizeof(record.call))), record.call,
+				record.cfo, record.snr, record.flips, record.ident, record.blocks,
+				record.drift, record.shift);
+	}
+	if (stats) {
+		Summary::header("total");
+		total.print("");
+		Summary::header("\nday");
+		for (auto &day: days)
+			day.second.print(day.first.c_str());
+		Summary::header("\nmode");
+		for (auto &it: modes)
+			it.second.print(std::to_string(it.first).c_str());
+		Summary::header("\ncall");
+		for (auto &it: calls)
+			it.second.print(it.first.empty() ? "-" : it.first.c_str());
+	}
+	if (skipped)
+		fprintf(stderr, "skipped %lld incomplete or overwritten records\n", (long long) skipped);
+	return 0;
+}